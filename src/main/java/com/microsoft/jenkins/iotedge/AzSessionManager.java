@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.iotedge;
+
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.Striped;
+import com.microsoft.jenkins.iotedge.model.AzureCredentialCache;
+import com.microsoft.jenkins.iotedge.model.AzureCredentialsValidationException;
+import com.microsoft.jenkins.iotedge.util.Constants;
+import hudson.FilePath;
+import hudson.model.Computer;
+import hudson.model.Node;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+
+/**
+ * Gives each service principal its own az CLI config directory on an agent, so concurrent deploys with different
+ * credentials don't overwrite each other's login, and reuses a login while it is recent enough. A session is read
+ * locked while it is in use, and logging in again takes the write lock, so that az never logs in to a config
+ * directory another build is running az in.
+ */
+public final class AzSessionManager {
+
+    private static final String SESSIONS_DIR = "azure-iot-edge/az-sessions";
+    private static final String LOGIN_MARKER = ".jenkins-login";
+
+    private static final long SESSION_TTL_MILLIS = TimeUnit.MINUTES.toMillis(
+            Long.getLong(AzSessionManager.class.getName() + ".sessionTtlMinutes", 50));
+
+    private static final Striped<ReadWriteLock> LOCKS = Striped.readWriteLock(32);
+
+    public static final class Session implements Closeable {
+        private final String configDir;
+        private final Lock lock;
+
+        Session(String configDir, Lock lock) {
+            this.configDir = configDir;
+            this.lock = lock;
+        }
+
+        public String getConfigDir() {
+            return configDir;
+        }
+
+        /**
+         * Environment variables pointing az at this session.
+         */
+        public Map<String, String> getEnvs() {
+            return envs(configDir);
+        }
+
+        /**
+         * Releases the session, on the thread that acquired it.
+         */
+        @Override
+        public void close() {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns a logged in az session for the credential on the agent of the workspace, logging in only if the
+     * session doesn't exist yet or its login is older than the session TTL. A login past the TTL is kept while
+     * other builds use the session, az refreshes the tokens of a service principal itself. The session must be
+     * closed once az is done with it.
+     */
+    public static Session acquire(FilePath workspace, ShellExecuter executer, AzureCredentialCache credential)
+            throws AzureCredentialsValidationException, IOException, InterruptedException {
+        FilePath dir = sessionsRoot(workspace).child(fingerprint(credential));
+        FilePath marker = dir.child(LOGIN_MARKER);
+
+        ReadWriteLock lock = LOCKS.get(nodeName(workspace) + ":" + dir.getRemote());
+        Lock readLock = lock.readLock();
+        Lock writeLock = lock.writeLock();
+        readLock.lockInterruptibly();
+        boolean exists;
+        try {
+            if (isLoginRecent(marker)) {
+                return new Session(dir.getRemote(), readLock);
+            }
+            exists = marker.exists();
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            readLock.unlock();
+            throw e;
+        }
+        readLock.unlock();
+
+        if (!exists) {
+            writeLock.lockInterruptibly();
+        } else if (!writeLock.tryLock()) {
+            // Another build runs az with the login, keep it
+            readLock.lockInterruptibly();
+            return new Session(dir.getRemote(), readLock);
+        }
+        try {
+            if (!isLoginRecent(marker)) {
+                dir.mkdirs();
+                try {
+                    executer.login(credential, envs(dir.getRemote()));
+                } catch (AzureCredentialsValidationException e) {
+                    marker.delete();
+                    throw e;
+                }
+                marker.write(String.valueOf(System.currentTimeMillis()), Constants.CHARSET_UTF_8);
+            }
+            // Downgrade to the read lock, no other login can get in between
+            readLock.lock();
+            return new Session(dir.getRemote(), readLock);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private static Map<String, String> envs(String configDir) {
+        Map<String, String> envs = new HashMap<>();
+        envs.put(Constants.AZURE_CONFIG_DIR_ENV, configDir);
+        return Collections.unmodifiableMap(envs);
+    }
+
+    private static boolean isLoginRecent(FilePath marker) throws IOException, InterruptedException {
+        if (!marker.exists()) {
+            return false;
+        }
+        try {
+            long loggedInAt = Long.parseLong(marker.readToString().trim());
+            return System.currentTimeMillis() - loggedInAt < SESSION_TTL_MILLIS;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static FilePath sessionsRoot(FilePath workspace) {
+        Computer computer = workspace.toComputer();
+        Node node = computer == null ? null : computer.getNode();
+        FilePath root = node == null ? null : node.getRootPath();
+        if (root == null) {
+            root = workspace.sibling(workspace.getName() + "@tmp");
+        }
+        return root.child(SESSIONS_DIR);
+    }
+
+    private static String nodeName(FilePath workspace) {
+        Computer computer = workspace.toComputer();
+        return computer == null ? "" : computer.getName();
+    }
+
+    private static String fingerprint(AzureCredentialCache credential) {
+        return Hashing.sha256().hashString(credential.tenantId + "/" + credential.clientId + "/"
+                + credential.clientSecret + "/" + credential.subscriptionId, StandardCharsets.UTF_8).toString().substring(0, 16);
+    }
+
+    private AzSessionManager() {
+    }
+}
@@ -10,29 +10,46 @@ import com.cloudbees.plugins.credentials.common.StandardListBoxModel;
 import com.google.common.base.Strings;
 import com.microsoft.azure.management.Azure;
 import com.microsoft.azure.management.containerregistry.Registry;
-import com.microsoft.azure.management.resources.GenericResource;
 import com.microsoft.azure.management.resources.ResourceGroup;
 import com.microsoft.azure.util.AzureBaseCredentials;
 import com.microsoft.azure.util.AzureCredentials;
+import com.microsoft.jenkins.iotedge.model.RestException;
 import com.microsoft.jenkins.iotedge.util.AzureUtils;
 import com.microsoft.jenkins.iotedge.util.Constants;
 import com.microsoft.jenkins.iotedge.util.Env;
-import com.microsoft.jenkins.iotedge.util.Util;
+import com.microsoft.jenkins.iotedge.util.IoTHubClient;
+import com.microsoft.jenkins.iotedge.util.ResourceDiscovery;
+import com.microsoft.jenkins.iotedge.util.ResourceListCache;
+import com.microsoft.jenkins.iotedge.util.TokenCache;
+import hudson.EnvVars;
+import hudson.FilePath;
 import hudson.model.AbstractProject;
 import hudson.model.Item;
+import hudson.model.Run;
+import hudson.model.TaskListener;
 import hudson.security.ACL;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
+import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
+import jenkins.model.Jenkins;
 import jenkins.tasks.SimpleBuildStep;
 import org.apache.commons.lang.StringUtils;
-import org.json.JSONArray;
-import org.json.JSONObject;
 import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
 
+import javax.ws.rs.POST;
 import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public abstract class BaseBuilder extends Builder implements SimpleBuildStep {
+    private static final Logger LOGGER = Logger.getLogger(BaseBuilder.class.getName());
+
     public String getAzureCredentialsId() {
         return azureCredentialsId;
     }
@@ -64,6 +81,8 @@ public abstract class BaseBuilder extends Builder implements SimpleBuildStep {
     private String azureCredentialsId;
     private String resourceGroup;
     private String rootPath = DescriptorImpl.defaultRootPath;
+    // The environment of the Pipeline step running the builder, withEnv included
+    private transient EnvVars stepEnvironment;
 
     protected BaseBuilder(String azureCredentialsId, String resourceGroup, String rootPath) {
         this.azureCredentialsId = azureCredentialsId;
@@ -80,23 +99,31 @@ public abstract class BaseBuilder extends Builder implements SimpleBuildStep {
     protected BaseBuilder() {
     }
 
-    protected void writeEnvFile(String path, String url, String bypassModules, String deploymentFileDir, String deploymentFileName) {
-        PrintWriter writer = null;
-        try {
-            writer = new PrintWriter(path, Constants.CHARSET_UTF_8);
-            writer.println(Env.EnvString);
-            writer.println(Constants.IOTEDGEDEV_ENV_REGISTRY_SERVER + "=\"" + url + "\"");
-            writer.println(Constants.IOTEDGEDEV_ENV_ACTIVE_MODULES + "=\"" + bypassModules + "\"");
-            writer.println(Constants.IOTEDGEDEV_CONFIG_OUTPUT_DIR + "=\"" + deploymentFileDir + "\"");
-            if (!Strings.isNullOrEmpty(deploymentFileName)) {
-                writer.println(Constants.IOTEDGEDEV_DEPLOYMENT_CONFIG_FILE + "=\"" + deploymentFileName + "\"");
-            }
-            writer.close();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
+    void setStepEnvironment(EnvVars stepEnvironment) {
+        this.stepEnvironment = stepEnvironment;
+    }
+
+    /**
+     * The environment the builder runs in, the one of its Pipeline step or else the one of the run. Callers get a
+     * copy they may change.
+     */
+    protected EnvVars getEnvironment(Run<?, ?> run, TaskListener listener) throws IOException, InterruptedException {
+        return stepEnvironment != null ? new EnvVars(stepEnvironment) : run.getEnvironment(listener);
+    }
+
+    /**
+     * Writes the .env file iotedgedev reads to the workspace, on the node the workspace is on.
+     */
+    protected void writeEnvFile(Run<?, ?> run, FilePath workspace, String url, String bypassModules,
+                                String deploymentFileDir, String deploymentFileName) throws IOException, InterruptedException {
+        StringBuilder env = new StringBuilder(Env.EnvString).append('\n');
+        env.append(Constants.IOTEDGEDEV_ENV_REGISTRY_SERVER + "=\"" + url + "\"\n");
+        env.append(Constants.IOTEDGEDEV_ENV_ACTIVE_MODULES + "=\"" + bypassModules + "\"\n");
+        env.append(Constants.IOTEDGEDEV_CONFIG_OUTPUT_DIR + "=\"" + deploymentFileDir + "\"\n");
+        if (!Strings.isNullOrEmpty(deploymentFileName)) {
+            env.append(Constants.IOTEDGEDEV_DEPLOYMENT_CONFIG_FILE + "=\"" + deploymentFileName + "\"\n");
         }
+        workspace.child(Constants.IOTEDGEDEV_ENV_FILENAME).write(env.toString(), Constants.CHARSET_UTF_8);
     }
 
     @Override
@@ -132,45 +159,118 @@ public abstract class BaseBuilder extends Builder implements SimpleBuildStep {
             return listResourceGroupItems(null, azureCredentialsId);
         }
 
-        protected ListBoxModel listResourceGroupItems(Item owner,
-                                                      String azureCredentialsId) {
-            final ListBoxModel model = new ListBoxModel(new ListBoxModel.Option(Constants.EMPTY_SELECTION, ""));
+        protected ListBoxModel listResourceGroupItems(final Item owner,
+                                                      final String azureCredentialsId) {
             // list all resource groups
             if (StringUtils.isNotBlank(azureCredentialsId)) {
-                final Azure azureClient = AzureUtils.buildClient(owner, azureCredentialsId);
-                for (final ResourceGroup rg : azureClient.resourceGroups().list()) {
-                    model.add(rg.name());
-                }
+                String key = ResourceListCache.key(ResourceListCache.KIND_RESOURCE_GROUP, azureCredentialsId,
+                        getSubscriptionId(owner, azureCredentialsId), null);
+                return cachedListBoxModel(key, new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() {
+                        List<String> names = new ArrayList<>();
+                        final Azure azureClient = AzureUtils.buildClient(owner, azureCredentialsId);
+                        for (final ResourceGroup rg : azureClient.resourceGroups().list()) {
+                            names.add(rg.name());
+                        }
+                        return names;
+                    }
+                });
             }
-            return model;
+            return new ListBoxModel(new ListBoxModel.Option(Constants.EMPTY_SELECTION, ""));
         }
 
-        protected ListBoxModel listAcrNameItems(Item owner, String azureCredentialsId,
-                                                String resourceGroup) {
-            final ListBoxModel model = new ListBoxModel(new ListBoxModel.Option(Constants.EMPTY_SELECTION, ""));
-
+        protected ListBoxModel listAcrNameItems(final Item owner, final String azureCredentialsId,
+                                                final String resourceGroup) {
             if (StringUtils.isNotBlank(azureCredentialsId)) {
-                final Azure azureClient = AzureUtils.buildClient(owner, azureCredentialsId);
-                for (final Registry registry : azureClient.containerRegistries().listByResourceGroup(resourceGroup)) {
-                    model.add(registry.name());
-                }
+                String key = ResourceListCache.key(ResourceListCache.KIND_ACR, azureCredentialsId,
+                        getSubscriptionId(owner, azureCredentialsId), resourceGroup);
+                return cachedListBoxModel(key, new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() throws IOException {
+                        if (ResourceDiscovery.SUBSCRIPTION_WIDE) {
+                            return discoverSubscription(owner, azureCredentialsId)
+                                    .get(ResourceDiscovery.TYPE_ACR, resourceGroup);
+                        }
+                        List<String> names = new ArrayList<>();
+                        final Azure azureClient = AzureUtils.buildClient(owner, azureCredentialsId);
+                        for (final Registry registry : azureClient.containerRegistries().listByResourceGroup(resourceGroup)) {
+                            names.add(registry.name());
+                        }
+                        return names;
+                    }
+                });
             }
-            return model;
+            return new ListBoxModel(new ListBoxModel.Option(Constants.EMPTY_SELECTION, ""));
         }
 
-        protected ListBoxModel listIothubNameItems(Item owner, String azureCredentialsId,
-                                                   String resourceGroup) {
-            final ListBoxModel model = new ListBoxModel(new ListBoxModel.Option(Constants.EMPTY_SELECTION, ""));
-
+        protected ListBoxModel listIothubNameItems(final Item owner, final String azureCredentialsId,
+                                                   final String resourceGroup) {
             if (StringUtils.isNotBlank(azureCredentialsId)) {
-                final Azure azureClient = AzureUtils.buildClient(owner, azureCredentialsId);
-                for (final GenericResource resource : azureClient.genericResources().listByResourceGroup(resourceGroup)) {
-                    if (resource.resourceProviderNamespace().equals("Microsoft.Devices") && resource.resourceType().equals("IotHubs")) {
-                        model.add(resource.name());
+                String key = ResourceListCache.key(ResourceListCache.KIND_IOTHUB, azureCredentialsId,
+                        getSubscriptionId(owner, azureCredentialsId), resourceGroup);
+                return cachedListBoxModel(key, new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() throws IOException {
+                        if (ResourceDiscovery.SUBSCRIPTION_WIDE) {
+                            return discoverSubscription(owner, azureCredentialsId)
+                                    .get(ResourceDiscovery.TYPE_IOTHUB, resourceGroup);
+                        }
+                        return ResourceDiscovery.listIothubs(
+                                AzureCredentials.getServicePrincipal(azureCredentialsId), resourceGroup);
                     }
-                }
+                });
             }
+            return new ListBoxModel(new ListBoxModel.Option(Constants.EMPTY_SELECTION, ""));
+        }
 
+        /**
+         * Drops the cached dropdown entries and Azure client of the credential so they're listed again.
+         */
+        @POST
+        public FormValidation doRefreshAzureResources(@QueryParameter String azureCredentialsId) {
+            Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+            if (StringUtils.isBlank(azureCredentialsId)) {
+                return FormValidation.warning("Select Azure credentials first.");
+            }
+            ResourceListCache.invalidate(azureCredentialsId);
+            AzureUtils.invalidateClient(azureCredentialsId);
+            return FormValidation.ok("Azure resources will be listed again.");
+        }
+
+        /**
+         * Discovers hubs and registries of all resource groups at once and fills the dropdown cache with them.
+         */
+        private ResourceDiscovery.Result discoverSubscription(Item owner, String azureCredentialsId) throws IOException {
+            AzureCredentials.ServicePrincipal servicePrincipal = AzureCredentials.getServicePrincipal(azureCredentialsId);
+            ResourceDiscovery.Result result = ResourceDiscovery.discoverSubscription(servicePrincipal);
+            String subscriptionId = getSubscriptionId(owner, azureCredentialsId);
+            for (Map.Entry<String, List<String>> entry : result.getByResourceGroup(ResourceDiscovery.TYPE_IOTHUB).entrySet()) {
+                ResourceListCache.put(ResourceListCache.key(ResourceListCache.KIND_IOTHUB, azureCredentialsId,
+                        subscriptionId, entry.getKey()), entry.getValue());
+            }
+            for (Map.Entry<String, List<String>> entry : result.getByResourceGroup(ResourceDiscovery.TYPE_ACR).entrySet()) {
+                ResourceListCache.put(ResourceListCache.key(ResourceListCache.KIND_ACR, azureCredentialsId,
+                        subscriptionId, entry.getKey()), entry.getValue());
+            }
+            return result;
+        }
+
+        private String getSubscriptionId(Item owner, String azureCredentialsId) {
+            return AzureUtils.getToken(owner, azureCredentialsId).getSubscriptionId();
+        }
+
+        private ListBoxModel cachedListBoxModel(String key, Callable<List<String>> loader) {
+            final ListBoxModel model = new ListBoxModel(new ListBoxModel.Option(Constants.EMPTY_SELECTION, ""));
+            try {
+                for (String name : ResourceListCache.get(key, loader)) {
+                    model.add(name);
+                }
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Failed to list Azure resources", e);
+            }
             return model;
         }
 
@@ -180,43 +280,20 @@ public abstract class BaseBuilder extends Builder implements SimpleBuildStep {
 
             if (StringUtils.isNotBlank(azureCredentialsId)) {
                 AzureCredentials.ServicePrincipal servicePrincipal = AzureCredentials.getServicePrincipal(azureCredentialsId);
-                String output = null;
-
-                output = Util.executePost(String.format(Constants.REST_GET_TOKEN_URL, servicePrincipal.getTenant()),
-                        String.format(Constants.REST_GET_TOKEN_BODY, servicePrincipal.getClientId(), Util.encodeURIComponent(servicePrincipal.getClientSecret())),
-                        null, null);
-
-                String accessToken = new JSONObject(output).getString("access_token");
-
-                output = Util.executePost(String.format(Constants.REST_GET_IOT_KEY_URL, servicePrincipal.getSubscriptionId(), Util.encodeURIComponent(resourceGroup), Util.encodeURIComponent(iothubName)),
-                        "",
-                        "Bearer " + accessToken, "application/json");
-                if (output == null) {
-                    return model;
-                }
-                String key = "";
-                JSONArray keys = new JSONObject(output).getJSONArray("value");
-                for (int i = 0; i < keys.length(); i++) {
-                    JSONObject obj = keys.getJSONObject(i);
-                    if (obj.getString("keyName").equals("iothubowner")) {
-                        key = obj.getString("primaryKey");
-                        break;
+                try {
+                    IoTHubClient client = IoTHubClient.create(servicePrincipal, resourceGroup, iothubName);
+                    for (String deviceId : client.listEdgeDeviceIds()) {
+                        model.add(deviceId);
                     }
+                } catch (RestException e) {
+                    if (e.isUnauthorized()) {
+                        // The key may have been regenerated, list it again next time
+                        TokenCache.invalidateIothubOwnerKey(servicePrincipal.getSubscriptionId(), resourceGroup, iothubName);
+                    }
+                    LOGGER.log(Level.WARNING, "Failed to list devices of IoT Hub " + iothubName, e);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to list devices of IoT Hub " + iothubName, e);
                 }
-
-                output = Util.executePost(String.format(Constants.REST_GET_DEVICES_URL, Util.encodeURIComponent(iothubName)),
-                        Constants.REST_GET_DEVICES_BODY,
-                        Util.getSharedAccessToken(String.format(Constants.IOT_HUB_URL, Util.encodeURIComponent(iothubName)),
-                                key,
-                                "iothubowner",
-                                Constants.SAS_TOKEN_MINUTES),
-                        "application/json");
-
-                JSONArray deviceArr = new JSONArray(output);
-                for (int i = 0; i < deviceArr.length(); i++) {
-                    model.add(deviceArr.getJSONObject(i).getString("deviceId"));
-                }
-
             }
 
             return model;
@@ -0,0 +1,145 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.iotedge;
+
+import com.microsoft.azure.management.Azure;
+import com.microsoft.azure.management.containerregistry.AccessKeyType;
+import com.microsoft.azure.management.containerregistry.Registry;
+import com.microsoft.azure.management.containerregistry.RegistryCredentials;
+import com.microsoft.azure.util.AzureCredentials;
+import com.microsoft.jenkins.iotedge.model.AzureCloudException;
+import com.microsoft.jenkins.iotedge.util.AzureUtils;
+import hudson.Extension;
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.model.listeners.RunListener;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * What the steps of a run resolve once and share: service principals, Azure clients and registry credentials.
+ * Nothing is kept on disk, the action is removed and its secrets dropped when the run completes.
+ */
+public class BuildContext extends InvisibleAction {
+
+    private final transient Map<String, AzureCredentials.ServicePrincipal> servicePrincipals = new HashMap<>();
+    private final transient Map<String, Azure> azureClients = new HashMap<>();
+    private final transient Map<String, RegistryLogin> registryLogins = new HashMap<>();
+
+    /**
+     * Login server and credentials of a container registry.
+     */
+    public static final class RegistryLogin {
+        private final String url;
+        private final String username;
+        private final String password;
+
+        RegistryLogin(String url, String username, String password) {
+            this.url = url;
+            this.username = username;
+            this.password = password;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getPassword() {
+            return password;
+        }
+    }
+
+    /**
+     * The context of a run, attached to it on first use.
+     */
+    public static BuildContext of(Run<?, ?> run) {
+        synchronized (run) {
+            BuildContext context = run.getAction(BuildContext.class);
+            if (context == null) {
+                context = new BuildContext();
+                run.addAction(context);
+            }
+            return context;
+        }
+    }
+
+    public synchronized AzureCredentials.ServicePrincipal getServicePrincipal(String credentialsId) {
+        AzureCredentials.ServicePrincipal servicePrincipal = servicePrincipals.get(credentialsId);
+        if (servicePrincipal == null) {
+            servicePrincipal = AzureCredentials.getServicePrincipal(credentialsId);
+            servicePrincipals.put(credentialsId, servicePrincipal);
+        }
+        return servicePrincipal;
+    }
+
+    public synchronized Azure getAzureClient(Run<?, ?> run, String credentialsId) {
+        Azure client = azureClients.get(credentialsId);
+        if (client == null) {
+            client = AzureUtils.buildClient(run.getParent(), credentialsId);
+            azureClients.put(credentialsId, client);
+        }
+        return client;
+    }
+
+    /**
+     * Login server and admin credentials of an Azure Container Registry.
+     */
+    public RegistryLogin getAcrLogin(Run<?, ?> run, String credentialsId, String resourceGroup, String acrName)
+            throws AzureCloudException {
+        String key = credentialsId + "/" + resourceGroup + "/" + acrName;
+        synchronized (this) {
+            RegistryLogin login = registryLogins.get(key);
+            if (login != null) {
+                return login;
+            }
+        }
+        Registry registry = getAzureClient(run, credentialsId).containerRegistries().getByResourceGroup(resourceGroup, acrName);
+        if (registry == null) {
+            throw AzureCloudException.create(String.format("Container registry %s not found in resource group %s",
+                    acrName, resourceGroup));
+        }
+        RegistryCredentials credentials = registry.getCredentials();
+        RegistryLogin login = new RegistryLogin(registry.loginServerUrl(), credentials.username(),
+                credentials.accessKeys().get(AccessKeyType.PRIMARY));
+        synchronized (this) {
+            registryLogins.put(key, login);
+        }
+        return login;
+    }
+
+    // Runs saved while the action was attached load without their transient fields
+    protected Object readResolve() {
+        return new BuildContext();
+    }
+
+    /**
+     * Forgets everything, credentials included.
+     */
+    synchronized void clear() {
+        servicePrincipals.clear();
+        azureClients.clear();
+        registryLogins.clear();
+    }
+
+    @Extension
+    public static final class Cleanup extends RunListener<Run<?, ?>> {
+        @Override
+        public void onCompleted(Run<?, ?> run, TaskListener listener) {
+            BuildContext context = run.getAction(BuildContext.class);
+            if (context != null) {
+                context.clear();
+                run.getActions().remove(context);
+            }
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.iotedge;
+
+import com.fasterxml.jackson.core.util.DefaultIndenter;
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+import com.google.common.hash.Hashing;
+import com.microsoft.jenkins.iotedge.model.AzureCloudException;
+import com.microsoft.jenkins.iotedge.util.Constants;
+import com.microsoft.jenkins.iotedge.util.Util;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Generates a deployment manifest from a deployment template the way {@code iotedgedev genconfig} does, without
+ * starting it: module image placeholders are replaced with the images of the modules, environment variables are
+ * expanded, and the create options of the modules are turned into strings. Parsed templates are cached by the hash
+ * of their content, so generating the manifest again for an unchanged template only walks its placeholders.
+ */
+public final class DeploymentTemplate {
+
+    private static final String SCHEMA_TEMPLATE_KEY = "$schema-template";
+    private static final String CREATE_OPTIONS_KEY = "createOptions";
+    private static final int CREATE_OPTIONS_CHUNK_SIZE = 512;
+    private static final int CACHE_SIZE = 32;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static final Map<String, DeploymentTemplate> CACHE = Collections.synchronizedMap(
+            new LinkedHashMap<String, DeploymentTemplate>(CACHE_SIZE, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, DeploymentTemplate> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            });
+
+    private final JsonNode template;
+    // Paths to the strings of the template that have placeholders, as field names and array indexes
+    private final List<List<Object>> placeholders;
+
+    private DeploymentTemplate(JsonNode template, List<List<Object>> placeholders) {
+        this.template = template;
+        this.placeholders = placeholders;
+    }
+
+    /**
+     * Parses a template, or returns the one parsed before from the same content.
+     */
+    public static DeploymentTemplate compile(String content) throws IOException {
+        String hash = Hashing.sha256().hashString(content, StandardCharsets.UTF_8).toString();
+        DeploymentTemplate compiled = CACHE.get(hash);
+        if (compiled == null) {
+            JsonNode template = MAPPER.readTree(content);
+            List<List<Object>> placeholders = new ArrayList<>();
+            findPlaceholders(template, new ArrayList<>(), placeholders);
+            compiled = new DeploymentTemplate(template, placeholders);
+            CACHE.put(hash, compiled);
+        }
+        return compiled;
+    }
+
+    /**
+     * Generates the manifest of a template in the workspace, like genconfig run from the workspace.
+     *
+     * @param workspace       the solution root
+     * @param templatePath    the deployment template, relative to the workspace
+     * @param outputPath      the deployment manifest to write, relative to the workspace
+     * @param defaultPlatform platform of the modules the template references without one
+     * @param envVars         variables to expand, in addition to the .env file
+     */
+    public static void generate(FilePath workspace, String templatePath, String outputPath, String defaultPlatform,
+                                Map<String, String> envVars) throws AzureCloudException, IOException, InterruptedException {
+        Util.act(workspace, new Generate(templatePath, outputPath, defaultPlatform, new HashMap<>(envVars)));
+    }
+
+    /**
+     * Generates on the node of the workspace, where the template and module files are; the parsed templates are
+     * cached in the agent JVM.
+     */
+    private static final class Generate extends MasterToSlaveFileCallable<Void> {
+        private static final long serialVersionUID = 1L;
+
+        private final String templatePath;
+        private final String outputPath;
+        private final String defaultPlatform;
+        private final Map<String, String> envVars;
+
+        Generate(String templatePath, String outputPath, String defaultPlatform, Map<String, String> envVars) {
+            this.templatePath = templatePath;
+            this.outputPath = outputPath;
+            this.defaultPlatform = defaultPlatform;
+            this.envVars = envVars;
+        }
+
+        @Override
+        public Void invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+            try {
+                generateLocally(new FilePath(workspace), templatePath, outputPath, defaultPlatform, envVars);
+            } catch (AzureCloudException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+            return null;
+        }
+    }
+
+    private static void generateLocally(FilePath workspace, String templatePath, String outputPath, String defaultPlatform,
+                                        Map<String, String> envVars) throws AzureCloudException, IOException, InterruptedException {
+        EnvVars vars = new EnvVars(ModuleBuildPlanner.readDotEnv(workspace.child(Constants.IOTEDGEDEV_ENV_FILENAME)));
+        vars.putAll(envVars);
+        FilePath template = workspace.child(templatePath);
+        if (!template.exists()) {
+            throw AzureCloudException.create("Deployment template not found: " + template.getRemote());
+        }
+        JsonNode manifest = compile(template.readToString()).generate(workspace, defaultPlatform, vars);
+        DefaultPrettyPrinter printer = new DefaultPrettyPrinter()
+                .withObjectIndenter(new DefaultIndenter("    ", DefaultIndenter.SYS_LF));
+        FilePath output = workspace.child(outputPath);
+        output.getParent().mkdirs();
+        output.write(MAPPER.writer(printer).writeValueAsString(manifest), Constants.CHARSET_UTF_8);
+    }
+
+    /**
+     * Generates the manifest of this template.
+     */
+    public JsonNode generate(FilePath workspace, String defaultPlatform, EnvVars vars)
+            throws AzureCloudException, IOException, InterruptedException {
+        JsonNode manifest = template.deepCopy();
+        Map<String, ModuleBuildPlanner.ModuleConfig> modules = new HashMap<>();
+        for (List<Object> path : placeholders) {
+            JsonNode parent = manifest;
+            for (int i = 0; i < path.size() - 1; i++) {
+                parent = child(parent, path.get(i));
+            }
+            Object last = path.get(path.size() - 1);
+            String value = expand(child(parent, last).textValue(), workspace, defaultPlatform, vars, modules);
+            if (parent.isObject()) {
+                ((ObjectNode) parent).put((String) last, value);
+            } else {
+                ((ArrayNode) parent).set((Integer) last, TextNode.valueOf(value));
+            }
+        }
+        if (manifest.isObject()) {
+            ((ObjectNode) manifest).remove(SCHEMA_TEMPLATE_KEY);
+        }
+        stringifyCreateOptions(manifest);
+        return manifest;
+    }
+
+    private static void findPlaceholders(JsonNode node, List<Object> path, List<List<Object>> placeholders) {
+        if (node.isTextual()) {
+            if (node.textValue().indexOf('$') >= 0) {
+                placeholders.add(new ArrayList<>(path));
+            }
+        } else if (node.isObject()) {
+            Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                path.add(field.getKey());
+                findPlaceholders(field.getValue(), path, placeholders);
+                path.remove(path.size() - 1);
+            }
+        } else if (node.isArray()) {
+            for (int i = 0; i < node.size(); i++) {
+                path.add(i);
+                findPlaceholders(node.get(i), path, placeholders);
+                path.remove(path.size() - 1);
+            }
+        }
+    }
+
+    private static JsonNode child(JsonNode node, Object key) {
+        return key instanceof Integer ? node.get((Integer) key) : node.get((String) key);
+    }
+
+    /**
+     * Replaces the module placeholders of a string with the module images, then expands the variables.
+     */
+    private static String expand(String value, FilePath workspace, String defaultPlatform, EnvVars vars,
+                                 Map<String, ModuleBuildPlanner.ModuleConfig> modules)
+            throws AzureCloudException, IOException, InterruptedException {
+        value = replaceModules(value, ModuleBuildPlanner.MODULE_PLACEHOLDER, Constants.EDGE_MODULES_FOLDERNAME + "/",
+                workspace, defaultPlatform, vars, modules);
+        value = replaceModules(value, ModuleBuildPlanner.MODULE_DIR_PLACEHOLDER, "",
+                workspace, defaultPlatform, vars, modules);
+        return vars.expand(value);
+    }
+
+    private static String replaceModules(String value, Pattern placeholder, String dirPrefix,
+                                         FilePath workspace, String defaultPlatform, EnvVars vars,
+                                         Map<String, ModuleBuildPlanner.ModuleConfig> modules)
+            throws AzureCloudException, IOException, InterruptedException {
+        Matcher matcher = placeholder.matcher(value);
+        if (!matcher.find()) {
+            return value;
+        }
+        StringBuffer result = new StringBuffer();
+        do {
+            String moduleDir = dirPrefix + matcher.group(1);
+            ModuleBuildPlanner.ModuleConfig module = modules.get(moduleDir);
+            if (module == null) {
+                module = ModuleBuildPlanner.ModuleConfig.read(workspace.child(moduleDir), vars);
+                modules.put(moduleDir, module);
+            }
+            String platform = matcher.group(2) != null ? matcher.group(2) : defaultPlatform;
+            matcher.appendReplacement(result, Matcher.quoteReplacement(module.getImage(platform)));
+        } while (matcher.find());
+        matcher.appendTail(result);
+        return result.toString();
+    }
+
+    /**
+     * Turns the create options objects of the modules into JSON strings, split into createOptions01, 02... when
+     * they are longer than the IoT Hub limit on a string property.
+     */
+    private static void stringifyCreateOptions(JsonNode node) throws IOException {
+        if (node.isObject()) {
+            ObjectNode object = (ObjectNode) node;
+            JsonNode createOptions = object.get(CREATE_OPTIONS_KEY);
+            if (createOptions != null && createOptions.isObject()) {
+                String options = MAPPER.writeValueAsString(createOptions);
+                object.put(CREATE_OPTIONS_KEY, options.substring(0, Math.min(options.length(), CREATE_OPTIONS_CHUNK_SIZE)));
+                for (int i = 1; i * CREATE_OPTIONS_CHUNK_SIZE < options.length(); i++) {
+                    object.put(String.format("%s%02d", CREATE_OPTIONS_KEY, i), options.substring(i * CREATE_OPTIONS_CHUNK_SIZE,
+                            Math.min(options.length(), (i + 1) * CREATE_OPTIONS_CHUNK_SIZE)));
+                }
+            }
+        }
+        for (JsonNode child : node) {
+            stringifyCreateOptions(child);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.iotedge;
+
+import com.github.dockerjava.api.DockerClient;
+import com.github.dockerjava.api.command.PushImageCmd;
+import com.github.dockerjava.api.model.AuthConfig;
+import com.github.dockerjava.api.model.PushResponseItem;
+import com.github.dockerjava.api.model.ResponseItem;
+import com.github.dockerjava.core.DefaultDockerClientConfig;
+import com.github.dockerjava.core.DockerClientBuilder;
+import com.github.dockerjava.core.command.PushImageResultCallback;
+import com.microsoft.jenkins.iotedge.util.RegistryClient;
+import hudson.FilePath;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Pushes module images with docker-java instead of iotedgedev. Images are pushed from the Docker daemon of the
+ * agent, several at a time, and the progress of each image is logged with the bytes sent and the throughput.
+ * The layers of one image are uploaded in parallel by the daemon itself, up to its max-concurrent-uploads.
+ */
+public final class DockerPusher {
+
+    static final long PROGRESS_INTERVAL_MILLIS =
+            Long.getLong(DockerPusher.class.getName() + ".progressIntervalMillis", 5000L);
+
+    private static final String DOCKER_HUB_ADDRESS = "https://index.docker.io/v1/";
+    private static final double MEGABYTE = 1024 * 1024;
+
+    /**
+     * Pushes the images on the agent of the workspace, at most {@code concurrency} at the same time.
+     *
+     * @return the images that failed to push, with the error of each, empty if all were pushed
+     */
+    public static Map<String, String> push(FilePath workspace, List<String> images, String registry, String username,
+                                           String password, int concurrency, TaskListener listener)
+            throws IOException, InterruptedException {
+        return workspace.act(new PushImages(images, registry, username, password, concurrency, listener));
+    }
+
+    static final class PushImages extends MasterToSlaveFileCallable<Map<String, String>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<String> images;
+        private final String registry;
+        private final String username;
+        private final String password;
+        private final int concurrency;
+        private final TaskListener listener;
+
+        PushImages(List<String> images, String registry, String username, String password, int concurrency,
+                   TaskListener listener) {
+            this.images = new ArrayList<>(images);
+            this.registry = registry;
+            this.username = username;
+            this.password = password;
+            this.concurrency = concurrency;
+            this.listener = listener;
+        }
+
+        @Override
+        public Map<String, String> invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+            final PrintStream logger = listener.getLogger();
+            final DockerClient client = DockerClientBuilder.getInstance(
+                    DefaultDockerClientConfig.createDefaultConfigBuilder().build()).build();
+            final AuthConfig auth = new AuthConfig()
+                    .withRegistryAddress(registry == null || registry.isEmpty() ? DOCKER_HUB_ADDRESS : registry)
+                    .withUsername(username)
+                    .withPassword(password);
+
+            List<Callable<ImageProgress>> tasks = new ArrayList<>();
+            for (final String image : images) {
+                // The credentials of the push registry only go to images on that registry, the others are pushed
+                // with the logins of the Docker config of the agent, if any
+                final AuthConfig imageAuth;
+                if (RegistryClient.isSameRegistry(registry, RegistryClient.parseImage(image).getRegistry())) {
+                    imageAuth = auth;
+                } else {
+                    imageAuth = null;
+                    logger.println(String.format("%s is not on registry %s, pushing it without its credentials",
+                            image, auth.getRegistryAddress()));
+                }
+                tasks.add(new Callable<ImageProgress>() {
+                    @Override
+                    public ImageProgress call() throws Exception {
+                        return pushImage(client, imageAuth, image, logger);
+                    }
+                });
+            }
+
+            Map<String, String> failed = new LinkedHashMap<>();
+            ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(images.size(), concurrency)),
+                    new NamingThreadFactory(new DaemonThreadFactory(), "Azure IoT Edge push"));
+            try {
+                List<Future<ImageProgress>> futures = executor.invokeAll(tasks);
+                for (int i = 0; i < futures.size(); i++) {
+                    String image = images.get(i);
+                    try {
+                        logger.println(String.format("Pushed %s: %s", image, futures.get(i).get().describe()));
+                    } catch (ExecutionException e) {
+                        Throwable cause = e.getCause() != null ? e.getCause() : e;
+                        if (cause instanceof InterruptedException) {
+                            throw (InterruptedException) cause;
+                        }
+                        logger.println(String.format("Failed to push %s: %s", image, cause.getMessage()));
+                        failed.put(image, String.valueOf(cause.getMessage()));
+                    }
+                }
+            } finally {
+                executor.shutdownNow();
+                client.close();
+            }
+            return failed;
+        }
+    }
+
+    /**
+     * Pushes one image, with the given credentials or, if null, those of the Docker config of the agent for the
+     * registry of the image.
+     */
+    static ImageProgress pushImage(DockerClient client, AuthConfig auth, final String image, final PrintStream logger)
+            throws InterruptedException {
+        String name = image;
+        String tag = "latest";
+        int colon = image.lastIndexOf(':');
+        if (colon > image.lastIndexOf('/')) {
+            name = image.substring(0, colon);
+            tag = image.substring(colon + 1);
+        }
+        final ImageProgress progress = new ImageProgress();
+        PushImageCmd command = client.pushImageCmd(name).withTag(tag);
+        if (auth != null) {
+            command.withAuthConfig(auth);
+        }
+        command.exec(new PushImageResultCallback() {
+            private long lastReport = System.currentTimeMillis();
+
+            @Override
+            public void onNext(PushResponseItem item) {
+                super.onNext(item);
+                ResponseItem.ProgressDetail detail = item.getProgressDetail();
+                progress.update(item.getId(), item.getStatus(),
+                        detail == null ? null : detail.getCurrent(), detail == null ? null : detail.getTotal());
+                long now = System.currentTimeMillis();
+                if (now - lastReport >= PROGRESS_INTERVAL_MILLIS) {
+                    lastReport = now;
+                    logger.println(String.format("Pushing %s: %s", image, progress.describe()));
+                }
+            }
+        }).awaitSuccess();
+        progress.finish();
+        return progress;
+    }
+
+    /**
+     * Bytes sent for the layers of one image, from the progress messages of the daemon.
+     */
+    static final class ImageProgress {
+        private final Map<String, Long> sent = new LinkedHashMap<>();
+        private final Map<String, Long> sizes = new LinkedHashMap<>();
+        private int existingLayers;
+        private final long start = System.currentTimeMillis();
+        private long end;
+
+        synchronized void update(String layer, String status, Long current, Long total) {
+            if (layer == null || status == null) {
+                return;
+            }
+            if (status.startsWith("Pushing")) {
+                if (current != null) {
+                    sent.put(layer, current);
+                }
+                if (total != null && total > 0) {
+                    sizes.put(layer, total);
+                }
+            } else if (status.startsWith("Pushed")) {
+                Long size = sizes.get(layer);
+                if (size != null) {
+                    sent.put(layer, size);
+                }
+            } else if (status.startsWith("Layer already exists")) {
+                existingLayers++;
+            }
+        }
+
+        synchronized void finish() {
+            end = System.currentTimeMillis();
+        }
+
+        synchronized long getBytesSent() {
+            long bytes = 0;
+            for (Long value : sent.values()) {
+                bytes += value;
+            }
+            return bytes;
+        }
+
+        synchronized long getBytesTotal() {
+            long bytes = 0;
+            for (Long value : sizes.values()) {
+                bytes += value;
+            }
+            return bytes;
+        }
+
+        synchronized int getExistingLayers() {
+            return existingLayers;
+        }
+
+        synchronized String describe() {
+            long elapsed = (end > 0 ? end : System.currentTimeMillis()) - start;
+            long bytes = getBytesSent();
+            double seconds = Math.max(elapsed, 1) / 1000.0;
+            return String.format("%.1f of %.1f MB in %.1fs (%.1f MB/s), %d layers sent, %d already in the registry",
+                    bytes / MEGABYTE, getBytesTotal() / MEGABYTE, seconds, bytes / MEGABYTE / seconds,
+                    sent.size(), existingLayers);
+        }
+    }
+
+    private DockerPusher() {
+    }
+}
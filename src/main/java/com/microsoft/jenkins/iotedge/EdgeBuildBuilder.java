@@ -20,6 +20,8 @@ import com.microsoft.jenkins.iotedge.model.AzureCloudException;
 import com.microsoft.jenkins.iotedge.util.AzureUtils;
 import com.microsoft.jenkins.iotedge.util.Constants;
 import com.microsoft.jenkins.iotedge.util.Env;
+import com.microsoft.jenkins.iotedge.util.PrefixedOutputStream;
+import com.microsoft.jenkins.iotedge.util.Util;
 import hudson.AbortException;
 import hudson.Extension;
 import hudson.FilePath;
@@ -28,9 +30,13 @@ import hudson.model.AbstractProject;
 import hudson.model.Item;
 import hudson.model.Run;
 import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
 import jenkins.model.Jenkins;
+import jenkins.security.MasterToSlaveCallable;
 import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.Symbol;
 import org.jenkinsci.plugins.docker.commons.credentials.DockerRegistryEndpoint;
@@ -42,10 +48,26 @@ import org.kohsuke.stapler.QueryParameter;
 import javax.servlet.ServletException;
 import javax.ws.rs.POST;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class EdgeBuildBuilder extends BaseBuilder {
 
@@ -71,6 +93,41 @@ public class EdgeBuildBuilder extends BaseBuilder {
 
     private String defaultPlatform;
 
+    public int getMaxConcurrentPlatforms() {
+        return maxConcurrentPlatforms;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentPlatforms(int maxConcurrentPlatforms) {
+        this.maxConcurrentPlatforms = maxConcurrentPlatforms;
+    }
+
+    private int maxConcurrentPlatforms = DescriptorImpl.defaultMaxConcurrentPlatforms;
+
+    public boolean isParallelModuleBuild() {
+        return parallelModuleBuild;
+    }
+
+    @DataBoundSetter
+    public void setParallelModuleBuild(boolean parallelModuleBuild) {
+        this.parallelModuleBuild = parallelModuleBuild;
+    }
+
+    private boolean parallelModuleBuild;
+
+    public boolean isIncrementalBuild() {
+        return incrementalBuild;
+    }
+
+    @DataBoundSetter
+    public void setIncrementalBuild(boolean incrementalBuild) {
+        this.incrementalBuild = incrementalBuild;
+    }
+
+    private boolean incrementalBuild;
+
+    private static final Logger LOGGER = Logger.getLogger(EdgeBuildBuilder.class.getName());
+
     @DataBoundConstructor
     public EdgeBuildBuilder() {
         super();
@@ -80,11 +137,25 @@ public class EdgeBuildBuilder extends BaseBuilder {
     public void perform(Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener) throws InterruptedException, IOException {
         try {
             // Generate .env file for iotedgedev use
-            writeEnvFile(Paths.get(workspace.getRemote(), Constants.IOTEDGEDEV_ENV_FILENAME).toString(), "", "", "", "");
+            writeEnvFile(run, workspace, "", "", "", "");
 
-            ShellExecuter executer = new ShellExecuter(run, launcher, listener, new File(workspace.getRemote()));
-            Map<String, String> envs = new HashMap<>();
-            executer.executeAZ(String.format("iotedgedev build --file \"%s\" --platform %s", deploymentManifestFilePath, defaultPlatform), true, envs);
+            List<String> platforms = Util.splitList(defaultPlatform);
+            BuildPlan buildPlan = null;
+            if (incrementalBuild || parallelModuleBuild) {
+                List<ModuleBuildPlanner.ModuleBuild> plan = ModuleBuildPlanner.plan(workspace, deploymentManifestFilePath,
+                        platforms, getEnvironment(run, listener));
+                buildPlan = incrementalBuild ? planIncremental(run, workspace, listener, plan) : new BuildPlan(plan);
+            }
+            if (parallelModuleBuild) {
+                buildModules(run, workspace, launcher, listener, buildPlan);
+            } else {
+                if (buildPlan != null && !buildPlan.unchangedModules.isEmpty()) {
+                    // Let iotedgedev skip the modules that are unchanged for all platforms
+                    writeEnvFile(run, workspace, "",
+                            StringUtils.join(buildPlan.unchangedModules, ","), "", "");
+                }
+                buildWithIotedgedev(run, workspace, launcher, listener, platforms);
+            }
 
             AzureIoTEdgePlugin.sendEvent(run.getClass().getSimpleName(), Constants.TELEMETRY_VALUE_TASK_TYPE_BUILD, null, run.getFullDisplayName(), null, null);
         } catch (AzureCloudException e) {
@@ -93,9 +164,256 @@ public class EdgeBuildBuilder extends BaseBuilder {
         }
     }
 
+    private void buildWithIotedgedev(Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener,
+                                     List<String> platforms) throws AzureCloudException, IOException, InterruptedException {
+        if (platforms.size() <= 1) {
+            ShellExecuter executer = new ShellExecuter(run, launcher, listener, workspace);
+            buildPlatform(executer, platforms.isEmpty() ? defaultPlatform : platforms.get(0), new HashMap<String, String>());
+        } else {
+            buildPlatforms(run, workspace, launcher, listener, platforms);
+        }
+    }
+
+    /**
+     * The module builds of a run, and what an incremental build can avoid.
+     */
+    private static final class BuildPlan {
+        private final List<ModuleBuildPlanner.ModuleBuild> builds;
+        private final Set<ModuleBuildPlanner.ModuleBuild> unchanged = new HashSet<>();
+        private final Map<ModuleBuildPlanner.ModuleBuild, String> retags = new HashMap<>();
+        private final List<String> unchangedModules = new ArrayList<>();
+
+        BuildPlan(List<ModuleBuildPlanner.ModuleBuild> builds) {
+            this.builds = builds;
+        }
+    }
+
+    /**
+     * Compares the content hash of every module build with the hash it was last pushed with. Builds pushed with the
+     * same hash and image are skipped; builds pushed with the same hash under another tag, e.g. after a version
+     * bump, are re-tagged. The hashes are handed to the push step, which records them once pushed.
+     */
+    private BuildPlan planIncremental(Run<?, ?> run, FilePath workspace, TaskListener listener,
+                                      List<ModuleBuildPlanner.ModuleBuild> plan) throws IOException, InterruptedException {
+        BuildPlan buildPlan = new BuildPlan(plan);
+        Map<ModuleBuildPlanner.ModuleBuild, String> hashes = ModuleHashIndex.hash(workspace, plan);
+        Map<String, ModuleHashIndex.Entry> pushed = ModuleHashIndex.load(run.getParent());
+        Map<String, ModuleHashIndex.Entry> entries = new HashMap<>();
+        Set<String> changedModules = new HashSet<>();
+        for (ModuleBuildPlanner.ModuleBuild build : plan) {
+            String key = ModuleHashIndex.key(build);
+            String hash = hashes.get(build);
+            entries.put(key, new ModuleHashIndex.Entry(hash, build.getImage()));
+            ModuleHashIndex.Entry previous = pushed.get(key);
+            if (previous == null || !hash.equals(previous.getHash())) {
+                changedModules.add(build.getModule());
+            } else if (previous.getImage().equals(build.getImage())) {
+                buildPlan.unchanged.add(build);
+                listener.getLogger().println(String.format("%s is unchanged since it was pushed as %s", build, build.getImage()));
+            } else {
+                buildPlan.retags.put(build, previous.getImage());
+                changedModules.add(build.getModule());
+                listener.getLogger().println(String.format("%s is unchanged since it was pushed as %s, re-tagging it as %s",
+                        build, previous.getImage(), build.getImage()));
+            }
+        }
+        for (ModuleBuildPlanner.ModuleBuild build : buildPlan.unchanged) {
+            if (!changedModules.contains(build.getModule()) && !buildPlan.unchangedModules.contains(build.getModule())) {
+                buildPlan.unchangedModules.add(build.getModule());
+            }
+        }
+        run.replaceAction(new ModuleBuildAction(entries, buildPlan.unchangedModules));
+        return buildPlan;
+    }
+
+    private void buildPlatform(ShellExecuter executer, String platform, Map<String, String> envs)
+            throws AzureCloudException, IOException, InterruptedException {
+        executer.executeAZ(String.format("iotedgedev build --file \"%s\" --platform %s", deploymentManifestFilePath, platform), true, envs);
+    }
+
+    /**
+     * Builds several platforms at the same time, at most {@link #maxConcurrentPlatforms} of them. All builds go to
+     * the Docker daemon of the agent, so base layers pulled for one platform are reused by the others. The log of
+     * each platform is prefixed with its name and timed. The builds share the solution and its .env file, which is
+     * written before they start and only read by them, but each one writes the deployment manifests it generates
+     * to a config folder of its own, {@code config/<platform>}, set through the environment that takes precedence
+     * over the .env file.
+     */
+    private void buildPlatforms(final Run<?, ?> run, final FilePath workspace, final Launcher launcher,
+                                TaskListener listener, List<String> platforms) throws AzureCloudException, InterruptedException {
+        final PrintStream logger = listener.getLogger();
+        // Jobs saved before the limit existed load it as 0
+        int limit = maxConcurrentPlatforms > 0 ? maxConcurrentPlatforms : DescriptorImpl.defaultMaxConcurrentPlatforms;
+        int concurrency = Math.min(platforms.size(), limit);
+        logger.println(String.format("Building %d platforms, %d at a time: %s",
+                platforms.size(), concurrency, StringUtils.join(platforms, ", ")));
+
+        List<Callable<Long>> tasks = new ArrayList<>();
+        for (final String platform : platforms) {
+            tasks.add(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    PrefixedOutputStream platformLog = new PrefixedOutputStream(logger, platform);
+                    try {
+                        long start = System.currentTimeMillis();
+                        ShellExecuter executer = new ShellExecuter(run, launcher,
+                                new StreamTaskListener(platformLog, StandardCharsets.UTF_8), workspace);
+                        Map<String, String> envs = new HashMap<>();
+                        envs.put(Constants.IOTEDGEDEV_CONFIG_OUTPUT_DIR,
+                                Constants.EDGE_DEPLOYMENT_CONFIG_FOLDERNAME + "/" + platform);
+                        buildPlatform(executer, platform, envs);
+                        return System.currentTimeMillis() - start;
+                    } finally {
+                        platformLog.close();
+                    }
+                }
+            });
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency,
+                new NamingThreadFactory(new DaemonThreadFactory(), "Azure IoT Edge build " + run.getFullDisplayName()));
+        List<String> failed = new ArrayList<>();
+        try {
+            List<Future<Long>> futures = executor.invokeAll(tasks);
+            for (int i = 0; i < futures.size(); i++) {
+                String platform = platforms.get(i);
+                try {
+                    logger.println(String.format("Built platform %s in %.1fs", platform, futures.get(i).get() / 1000.0));
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    if (cause instanceof InterruptedException) {
+                        throw (InterruptedException) cause;
+                    }
+                    if (!(cause instanceof AzureCloudException)) {
+                        LOGGER.log(Level.WARNING, "Failed to build platform " + platform, cause);
+                    }
+                    logger.println(String.format("Failed to build platform %s: %s", platform, cause.getMessage()));
+                    failed.add(platform);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        if (!failed.isEmpty()) {
+            throw AzureCloudException.create(String.format("Build failed for %d of %d platforms: %s",
+                    failed.size(), platforms.size(), StringUtils.join(failed, ", ")));
+        }
+    }
+
+    /**
+     * Builds the module images planned by {@link ModuleBuildPlanner} with docker directly, running builds that
+     * don't depend on each other at the same time, at most one per processor of the agent.
+     */
+    private void buildModules(final Run<?, ?> run, final FilePath workspace, final Launcher launcher,
+                              TaskListener listener, BuildPlan buildPlan) throws AzureCloudException, IOException, InterruptedException {
+        final PrintStream logger = listener.getLogger();
+        List<ModuleBuildPlanner.ModuleBuild> plan = buildPlan.builds;
+        if (plan.size() == buildPlan.unchanged.size()) {
+            logger.println("No module images to build");
+            return;
+        }
+        List<ModuleBuildPlanner.ModuleBuild> toBuild = new ArrayList<>();
+        for (ModuleBuildPlanner.ModuleBuild build : plan) {
+            if (!buildPlan.unchanged.contains(build)) {
+                toBuild.add(build);
+            }
+        }
+        int concurrency = Math.min(toBuild.size(), workspace.getChannel().call(new AgentProcessors()));
+        logger.println(String.format("Building %d module images, %d at a time: %s",
+                toBuild.size(), concurrency, StringUtils.join(toBuild, ", ")));
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency,
+                new NamingThreadFactory(new DaemonThreadFactory(), "Azure IoT Edge module build " + run.getFullDisplayName()));
+        CompletionService<ModuleBuildPlanner.ModuleBuild> completion = new ExecutorCompletionService<>(executor);
+        Map<Future<ModuleBuildPlanner.ModuleBuild>, ModuleBuildPlanner.ModuleBuild> running = new HashMap<>();
+        List<ModuleBuildPlanner.ModuleBuild> waiting = new ArrayList<>(plan);
+        Set<ModuleBuildPlanner.ModuleBuild> built = new HashSet<>();
+        Set<ModuleBuildPlanner.ModuleBuild> failed = new LinkedHashSet<>();
+        try {
+            while (true) {
+                // The plan is ordered, so dependencies are always decided before the builds depending on them
+                Iterator<ModuleBuildPlanner.ModuleBuild> it = waiting.iterator();
+                while (it.hasNext()) {
+                    final ModuleBuildPlanner.ModuleBuild build = it.next();
+                    if (!Collections.disjoint(build.getDependencies(), failed)) {
+                        it.remove();
+                        failed.add(build);
+                        logger.println(String.format("Skipped %s, an image it depends on failed to build", build));
+                    } else if (buildPlan.unchanged.contains(build)) {
+                        it.remove();
+                        built.add(build);
+                    } else if (built.containsAll(build.getDependencies())) {
+                        it.remove();
+                        final String retagFrom = buildPlan.retags.get(build);
+                        running.put(completion.submit(new Callable<ModuleBuildPlanner.ModuleBuild>() {
+                            @Override
+                            public ModuleBuildPlanner.ModuleBuild call() throws Exception {
+                                PrefixedOutputStream buildLog = new PrefixedOutputStream(logger, build.toString());
+                                try {
+                                    long start = System.currentTimeMillis();
+                                    ShellExecuter executer = new ShellExecuter(run, launcher,
+                                            new StreamTaskListener(buildLog, StandardCharsets.UTF_8), workspace);
+                                    if (retagFrom != null) {
+                                        try {
+                                            executer.executeAZ(String.format("docker tag \"%s\" \"%s\"", retagFrom, build.getImage()),
+                                                    true, new HashMap<String, String>());
+                                            return build;
+                                        } catch (AzureCloudException e) {
+                                            // The image isn't on this agent, build it instead
+                                        }
+                                    }
+                                    executer.executeAZ(build.getCommand(), true, new HashMap<String, String>());
+                                    buildLog.write(String.format("Built %s in %.1fs%n", build.getImage(),
+                                            (System.currentTimeMillis() - start) / 1000.0).getBytes(StandardCharsets.UTF_8));
+                                    return build;
+                                } finally {
+                                    buildLog.close();
+                                }
+                            }
+                        }), build);
+                    }
+                }
+                if (running.isEmpty()) {
+                    break;
+                }
+                Future<ModuleBuildPlanner.ModuleBuild> done = completion.take();
+                ModuleBuildPlanner.ModuleBuild build = running.remove(done);
+                try {
+                    built.add(done.get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause() != null ? e.getCause() : e;
+                    if (!(cause instanceof AzureCloudException)) {
+                        LOGGER.log(Level.WARNING, "Failed to build " + build, cause);
+                    }
+                    logger.println(String.format("Failed to build %s: %s", build, cause.getMessage()));
+                    failed.add(build);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        if (!failed.isEmpty()) {
+            throw AzureCloudException.create(String.format("Failed to build %d of %d module images: %s",
+                    failed.size(), plan.size(), StringUtils.join(failed, ", ")));
+        }
+    }
+
+    /**
+     * Number of processors of the agent running the build.
+     */
+    private static final class AgentProcessors extends MasterToSlaveCallable<Integer, RuntimeException> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public Integer call() {
+            return Runtime.getRuntime().availableProcessors();
+        }
+    }
+
     @Extension
     @Symbol("azureIoTEdgeBuild")
     public static final class DescriptorImpl extends BaseBuilder.DescriptorImpl {
+        public static final int defaultMaxConcurrentPlatforms = 3;
 
         @Override
         public boolean isApplicable(Class<? extends AbstractProject> aClass) {
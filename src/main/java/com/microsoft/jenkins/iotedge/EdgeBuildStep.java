@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.iotedge;
+
+import hudson.Extension;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * Pipeline step running {@link EdgeBuildBuilder} without holding an executor thread.
+ */
+public class EdgeBuildStep extends EdgeStep<EdgeBuildBuilder> {
+
+    @DataBoundConstructor
+    public EdgeBuildStep() {
+        super(new EdgeBuildBuilder());
+    }
+
+    public String getDeploymentManifestFilePath() {
+        return builder.getDeploymentManifestFilePath();
+    }
+
+    @DataBoundSetter
+    public void setDeploymentManifestFilePath(String deploymentManifestFilePath) {
+        builder.setDeploymentManifestFilePath(deploymentManifestFilePath);
+    }
+
+    public String getDefaultPlatform() {
+        return builder.getDefaultPlatform();
+    }
+
+    @DataBoundSetter
+    public void setDefaultPlatform(String defaultPlatform) {
+        builder.setDefaultPlatform(defaultPlatform);
+    }
+
+    public int getMaxConcurrentPlatforms() {
+        return builder.getMaxConcurrentPlatforms();
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentPlatforms(int maxConcurrentPlatforms) {
+        builder.setMaxConcurrentPlatforms(maxConcurrentPlatforms);
+    }
+
+    public boolean isParallelModuleBuild() {
+        return builder.isParallelModuleBuild();
+    }
+
+    @DataBoundSetter
+    public void setParallelModuleBuild(boolean parallelModuleBuild) {
+        builder.setParallelModuleBuild(parallelModuleBuild);
+    }
+
+    public boolean isIncrementalBuild() {
+        return builder.isIncrementalBuild();
+    }
+
+    @DataBoundSetter
+    public void setIncrementalBuild(boolean incrementalBuild) {
+        builder.setIncrementalBuild(incrementalBuild);
+    }
+
+
+    @Extension
+    public static final class DescriptorImpl extends EdgeStepDescriptor {
+
+        public DescriptorImpl() {
+            super(EdgeBuildBuilder.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "azureIoTEdgeBuild";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Azure IoT Edge Build";
+        }
+    }
+}
@@ -8,7 +8,10 @@ package com.microsoft.jenkins.iotedge;
 
 import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.core.util.DefaultPrettyPrinter;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.microsoft.azure.management.Azure;
 import com.microsoft.azure.management.containerregistry.AccessKeyType;
@@ -19,24 +22,32 @@ import com.microsoft.azure.util.AzureCredentials;
 import com.microsoft.jenkins.iotedge.model.AzureCloudException;
 import com.microsoft.jenkins.iotedge.model.AzureCredentialCache;
 import com.microsoft.jenkins.iotedge.model.AzureCredentialsValidationException;
+import com.microsoft.jenkins.iotedge.model.RestException;
 import com.microsoft.jenkins.iotedge.util.AzureUtils;
 import com.microsoft.jenkins.iotedge.util.Constants;
+import com.microsoft.jenkins.iotedge.util.DeploymentManifest;
+import com.microsoft.jenkins.iotedge.util.HubRateLimiter;
+import com.microsoft.jenkins.iotedge.util.IoTHubClient;
+import com.microsoft.jenkins.iotedge.util.JsonHash;
+import com.microsoft.jenkins.iotedge.util.PrefixedOutputStream;
+import com.microsoft.jenkins.iotedge.util.ResourceDiscovery;
+import com.microsoft.jenkins.iotedge.util.TokenCache;
 import com.microsoft.jenkins.iotedge.util.Util;
 import hudson.AbortException;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.*;
+import hudson.util.ComboBoxModel;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
+import hudson.util.NamingThreadFactory;
+import hudson.util.StreamTaskListener;
 import jenkins.model.Jenkins;
-import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.jenkinsci.Symbol;
 import org.jenkinsci.plugins.docker.commons.credentials.DockerRegistryEndpoint;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 import org.kohsuke.stapler.AncestorInPath;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.DataBoundSetter;
@@ -45,12 +56,23 @@ import org.kohsuke.stapler.QueryParameter;
 import javax.servlet.ServletException;
 import javax.ws.rs.POST;
 import java.io.*;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class EdgeDeployBuilder extends BaseBuilder {
 
@@ -110,6 +132,59 @@ public class EdgeDeployBuilder extends BaseBuilder {
         this.deploymentId = deploymentId;
     }
 
+    public String getDeployMode() {
+        return deployMode;
+    }
+
+    @DataBoundSetter
+    public void setDeployMode(String deployMode) {
+        this.deployMode = deployMode;
+    }
+
+    // Jobs saved before the deploy mode existed deployed with Azure CLI, and keep doing so
+    protected Object readResolve() {
+        if (deployMode == null) {
+            deployMode = Constants.DEPLOY_MODE_CLI;
+        }
+        return this;
+    }
+
+    public boolean isVersionedDeploy() {
+        return versionedDeploy;
+    }
+
+    @DataBoundSetter
+    public void setVersionedDeploy(boolean versionedDeploy) {
+        this.versionedDeploy = versionedDeploy;
+    }
+
+    public int getRolloutTimeoutMinutes() {
+        return rolloutTimeoutMinutes;
+    }
+
+    @DataBoundSetter
+    public void setRolloutTimeoutMinutes(int rolloutTimeoutMinutes) {
+        this.rolloutTimeoutMinutes = rolloutTimeoutMinutes;
+    }
+
+    public int getRolloutSuccessPercent() {
+        return rolloutSuccessPercent;
+    }
+
+    @DataBoundSetter
+    public void setRolloutSuccessPercent(int rolloutSuccessPercent) {
+        this.rolloutSuccessPercent = rolloutSuccessPercent;
+    }
+
+    public int getRolloutFailurePercent() {
+        return rolloutFailurePercent;
+    }
+
+    @DataBoundSetter
+    public void setRolloutFailurePercent(int rolloutFailurePercent) {
+        this.rolloutFailurePercent = rolloutFailurePercent;
+    }
+
     public String getPriority() {
         return priority;
     }
@@ -126,6 +201,27 @@ public class EdgeDeployBuilder extends BaseBuilder {
 
     private String deploymentId;
     private String priority;
+    private String deployMode = DescriptorImpl.defaultDeployMode;
+    private boolean versionedDeploy;
+    private int rolloutTimeoutMinutes;
+    private int rolloutSuccessPercent = DescriptorImpl.defaultRolloutSuccessPercent;
+    private int rolloutFailurePercent;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Hubs deployed to at the same time when the step targets several of them.
+     */
+    static final int MAX_CONCURRENT_HUBS =
+            Math.max(1, Integer.getInteger(EdgeDeployBuilder.class.getName() + ".maxConcurrentHubs", 8));
+
+    /**
+     * Retries of a hub after a throttled, server or connection error.
+     */
+    static final int HUB_RETRIES =
+            Math.max(0, Integer.getInteger(EdgeDeployBuilder.class.getName() + ".hubRetries", 2));
+
+    private static final long MAX_RETRY_DELAY_SECONDS = 30;
 
     @DataBoundConstructor
     public EdgeDeployBuilder(final String azureCredentialsId,
@@ -140,58 +236,561 @@ public class EdgeDeployBuilder extends BaseBuilder {
     }
 
     @Override
-    @edu.umd.cs.findbugs.annotations.SuppressFBWarnings(
-            value="DLS_DEAD_LOCAL_STORE",
-            justification="Don't need use the result from delete file")
     public void perform(Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener) throws InterruptedException, IOException {
+        deploy(run, workspace, launcher, listener, null);
+    }
+
+    /**
+     * Deploys to the hubs. When {@code rollouts} is given, the rollouts to wait for are added to it instead of
+     * being waited for, so that the caller can watch them without holding a thread.
+     */
+    void deploy(Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener,
+                List<RolloutMonitor.Rollout> rollouts) throws InterruptedException, IOException {
         try {
             // Generate .env file for iotedgedev use
-            writeEnvFile(Paths.get(workspace.getRemote(), Constants.IOTEDGEDEV_ENV_FILENAME).toString(), "", "", "", "");
+            writeEnvFile(run, workspace, "", "", "", "");
             
-            String deploymentJsonPath = Paths.get(workspace.getRemote(), deploymentFilePath).toString();
-
-            // Modify deployment.json structure
-            InputStream stream = new FileInputStream(deploymentJsonPath);
-            JSONObject deploymentJson = new JSONObject(IOUtils.toString(stream, Constants.CHARSET_UTF_8));
-            stream.close();
+            FilePath deploymentFile = workspace.child(deploymentFilePath);
+            String deploymentJsonPath = deploymentFile.getRemote();
+            // Check the manifest, hash its content and cut it out on the agent, in one pass. Only the REST API
+            // needs the content, sent to the hub as is; the CLI reads the file itself
+            DeploymentManifest.Summary manifest = DeploymentManifest.scan(deploymentFile,
+                    !Constants.DEPLOY_MODE_CLI.equals(deployMode));
+            listener.getLogger().println(String.format("Deployment manifest %s: %d modules, %d bytes, content hash %s",
+                    deploymentFilePath, manifest.getModuleCount(), manifest.getSize(), manifest.getContentHash()));
 
-            // deploy using azure cli
             String condition = "";
             if (deploymentType.equals("multiple")) {
                 condition = targetCondition;
             } else {
                 condition = "deviceId='" + deviceId + "'";
             }
-            AzureCredentials.ServicePrincipal servicePrincipal = AzureCredentials.getServicePrincipal(getAzureCredentialsId());
-            AzureCredentialCache credentialCache = new AzureCredentialCache(servicePrincipal);
-            ShellExecuter azExecuter = new ShellExecuter(run, launcher, listener, new File(workspace.getRemote()));
+            AzureCredentials.ServicePrincipal servicePrincipal = BuildContext.of(run).getServicePrincipal(getAzureCredentialsId());
+            List<String> hubs = resolveIothubNames(servicePrincipal);
+
+            AzSessionManager.Session session = null;
+            if (Constants.DEPLOY_MODE_CLI.equals(deployMode)) {
+                if (versionedDeploy) {
+                    listener.getLogger().println("Versioned deployments need the IoT Hub REST API, deploying in place");
+                }
+                // One login is shared by all hubs
+                ShellExecuter azExecuter = new ShellExecuter(run, launcher, listener, workspace);
+                session = AzSessionManager.acquire(workspace, azExecuter, new AzureCredentialCache(servicePrincipal));
+            }
+            // The session stays locked against a new login until every hub is deployed to
             try {
-                azExecuter.login(credentialCache);
+                DeployContext context = new DeployContext(run, workspace, launcher, servicePrincipal,
+                        manifest.getContent(), manifest.getContentHash(), deploymentJsonPath, condition, session,
+                        rollouts == null ? null : Collections.synchronizedList(rollouts));
+
+                if (hubs.size() == 1) {
+                    HubResult result = deployToHub(context, hubs.get(0), listener);
+                    if (result.error != null) {
+                        throw AzureCloudException.create(result.error.getMessage());
+                    }
+                    // delete generated deployment.json
+                    // Files.deleteIfExists(Paths.get(workspace.getRemote(), Constants.EDGE_DEPLOYMENT_CONFIG_FOLDERNAME, Constants.EDGE_DEPLOYMENT_CONFIG_FILENAME));
+                    AzureIoTEdgePlugin.sendEvent(run.getClass().getSimpleName(), result.getTelemetryTaskType(), null, run.getFullDisplayName(), servicePrincipal.getSubscriptionId() , String.format(Constants.IOT_HUB_URL, result.hub));
+                } else {
+                    deployToHubs(context, hubs, listener);
+                }
+            } finally {
+                if (session != null) {
+                    session.close();
+                }
+            }
+        } catch (AzureCloudException | AzureCredentialsValidationException e) {
+            AzureIoTEdgePlugin.sendEvent(run.getClass().getSimpleName(), Constants.TELEMETRY_VALUE_TASK_TYPE_DEPLOY, e.getMessage(), run.getFullDisplayName(), BuildContext.of(run).getServicePrincipal(getAzureCredentialsId()).getSubscriptionId(), String.format(Constants.IOT_HUB_URL, iothubName));
+            throw new AbortException(e.getMessage());
+        }
+    }
 
-                String scriptToDelete = "az iot edge deployment delete --hub-name " + iothubName + " --config-id " + deploymentId + "";
-                azExecuter.executeAZ(scriptToDelete, false);
-            } catch (AzureCloudException e) {
-                if (!e.getMessage().contains("ConfigurationNotFound")) {
-                    throw e;
+    /**
+     * Resolves the IoT Hub field, a comma separated list of hub names or patterns such as {@code prod-*}, to the
+     * hubs to deploy to. Patterns are matched against the hubs of the resource group.
+     */
+    List<String> resolveIothubNames(AzureCredentials.ServicePrincipal servicePrincipal) throws AzureCloudException, IOException {
+        Set<String> names = new LinkedHashSet<>();
+        List<String> available = null;
+        for (String entry : Util.splitList(iothubName)) {
+            if (!Util.isGlob(entry)) {
+                names.add(entry);
+                continue;
+            }
+            if (available == null) {
+                available = ResourceDiscovery.listIothubs(servicePrincipal, getResourceGroup());
+            }
+            boolean matched = false;
+            for (String name : available) {
+                if (Util.matchesGlob(entry, name)) {
+                    names.add(name);
+                    matched = true;
                 }
             }
+            if (!matched) {
+                throw AzureCloudException.create(String.format("No IoT Hub in resource group %s matches %s", getResourceGroup(), entry));
+            }
+        }
+        if (names.isEmpty()) {
+            throw AzureCloudException.create("No IoT Hub to deploy to");
+        }
+        return new ArrayList<>(names);
+    }
 
-            String scriptToDeploy = "az iot edge deployment create --config-id " + deploymentId + " --hub-name " + iothubName + " --content \"" + deploymentJsonPath + "\" --target-condition \"" + condition + "\" --priority " + priority + "";
-            azExecuter.executeAZ(scriptToDeploy, true);
+    /**
+     * Deploys to several hubs concurrently, prefixing the log of each hub with its name, then prints a summary.
+     * Hubs that fail don't stop the others; the step fails once all of them are done.
+     */
+    private void deployToHubs(final DeployContext context, List<String> hubs, TaskListener listener)
+            throws InterruptedException, AbortException {
+        final PrintStream logger = listener.getLogger();
+        logger.println(String.format("Deploying to %d IoT Hubs, %d at a time: %s",
+                hubs.size(), Math.min(hubs.size(), MAX_CONCURRENT_HUBS), StringUtils.join(hubs, ", ")));
+
+        List<Callable<HubResult>> tasks = new ArrayList<>();
+        for (final String hub : hubs) {
+            tasks.add(new Callable<HubResult>() {
+                @Override
+                public HubResult call() throws Exception {
+                    PrefixedOutputStream hubLog = new PrefixedOutputStream(logger, hub);
+                    try {
+                        return deployToHub(context, hub, new StreamTaskListener(hubLog, StandardCharsets.UTF_8));
+                    } finally {
+                        hubLog.close();
+                    }
+                }
+            });
+        }
 
-            // delete generated deployment.json
-            // Files.deleteIfExists(Paths.get(workspace.getRemote(), Constants.EDGE_DEPLOYMENT_CONFIG_FOLDERNAME, Constants.EDGE_DEPLOYMENT_CONFIG_FILENAME));
-            AzureIoTEdgePlugin.sendEvent(run.getClass().getSimpleName(), Constants.TELEMETRY_VALUE_TASK_TYPE_DEPLOY, null, run.getFullDisplayName(), servicePrincipal.getSubscriptionId() , String.format(Constants.IOT_HUB_URL, iothubName));
-        } catch (AzureCloudException | AzureCredentialsValidationException e) {
-            AzureIoTEdgePlugin.sendEvent(run.getClass().getSimpleName(), Constants.TELEMETRY_VALUE_TASK_TYPE_DEPLOY, e.getMessage(), run.getFullDisplayName(), AzureCredentials.getServicePrincipal(getAzureCredentialsId()).getSubscriptionId(), String.format(Constants.IOT_HUB_URL, iothubName));
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(hubs.size(), MAX_CONCURRENT_HUBS),
+                new NamingThreadFactory(new DaemonThreadFactory(), "Azure IoT Edge deploy " + context.run.getFullDisplayName()));
+        List<HubResult> results = new ArrayList<>();
+        try {
+            List<Future<HubResult>> futures = executor.invokeAll(tasks);
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    results.add(new HubResult(hubs.get(i), HubResult.Status.FAILED, 1, 0,
+                            cause instanceof Exception ? (Exception) cause : e));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        List<String> failed = new ArrayList<>();
+        logger.println("Deployment summary:");
+        for (HubResult result : results) {
+            logger.println("  " + result);
+            AzureIoTEdgePlugin.sendEvent(context.run.getClass().getSimpleName(), result.getTelemetryTaskType(),
+                    result.error == null ? null : result.error.getMessage(), context.run.getFullDisplayName(),
+                    context.servicePrincipal.getSubscriptionId(), String.format(Constants.IOT_HUB_URL, result.hub));
+            if (result.error != null) {
+                failed.add(result.hub);
+            }
+        }
+        for (HubResult result : results) {
+            for (String line : HubRateLimiter.describe(result.hub)) {
+                logger.println("  Rate limit " + line);
+            }
+        }
+        if (!failed.isEmpty()) {
+            throw new AbortException(String.format("Deployment failed on %d of %d IoT Hubs: %s",
+                    failed.size(), results.size(), StringUtils.join(failed, ", ")));
+        }
+    }
+
+    /**
+     * Deploys to one hub, retrying throttled, server and connection errors.
+     */
+    private HubResult deployToHub(DeployContext context, String hub, TaskListener listener) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        for (int attempt = 1; ; attempt++) {
+            try {
+                boolean deployed;
+                Deployment deployment = new Deployment(deploymentId);
+                if (context.session != null) {
+                    deployWithCli(context, hub, listener);
+                    deployed = true;
+                } else {
+                    deployed = deployWithRest(context, hub, deployment, listener);
+                }
+                if (rolloutTimeoutMinutes > 0) {
+                    try {
+                        awaitRollout(context, hub, deployment, listener);
+                    } catch (IOException | AzureCloudException e) {
+                        // The deployment is done, don't deploy again
+                        return new HubResult(hub, HubResult.Status.FAILED, attempt, System.currentTimeMillis() - start, e);
+                    }
+                } else {
+                    RolloutMonitor.removeVersions(context.servicePrincipal, getResourceGroup(), hub,
+                            deployment.superseded, listener.getLogger());
+                }
+                return new HubResult(hub, deployed ? HubResult.Status.DEPLOYED : HubResult.Status.SKIPPED,
+                        attempt, System.currentTimeMillis() - start, null);
+            } catch (IOException | AzureCloudException e) {
+                if (attempt > HUB_RETRIES || !isRetryable(context, hub, e)) {
+                    return new HubResult(hub, HubResult.Status.FAILED, attempt, System.currentTimeMillis() - start, e);
+                }
+                long delaySeconds = retryDelaySeconds(e, attempt);
+                listener.getLogger().println(String.format("Deployment to %s failed: %s. Retrying in %d seconds",
+                        hub, e.getMessage(), delaySeconds));
+                TimeUnit.SECONDS.sleep(delaySeconds);
+            }
+        }
+    }
+
+    /**
+     * Waits for the deployment to roll out on the hub, see {@link RolloutMonitor}. The previous versions it
+     * supersedes are removed once it has.
+     */
+    private void awaitRollout(DeployContext context, String hub, Deployment deployment, TaskListener listener)
+            throws AzureCloudException, IOException, InterruptedException {
+        RolloutMonitor monitor = newRolloutMonitor();
+        if (context.rollouts != null) {
+            context.rollouts.add(monitor.start(hub, deployment.configurationId, deployment.superseded, listener));
+        } else {
+            monitor.await(context.servicePrincipal, getResourceGroup(), hub, deployment.configurationId,
+                    deployment.superseded, listener);
+        }
+    }
+
+    RolloutMonitor newRolloutMonitor() {
+        // Jobs saved before the thresholds existed load them as 0
+        int successPercent = rolloutSuccessPercent > 0 ? rolloutSuccessPercent : DescriptorImpl.defaultRolloutSuccessPercent;
+        return new RolloutMonitor(rolloutTimeoutMinutes, successPercent, Math.max(0, rolloutFailurePercent));
+    }
+
+    /**
+     * Starts watching the rollout of the latest version of the deployment on each hub, without deploying. Only
+     * IoT Hub is queried, so the rollouts can be watched without a workspace or an agent.
+     */
+    List<RolloutMonitor.Rollout> watchRollouts(Run<?, ?> run, TaskListener listener) throws IOException {
+        try {
+            if (rolloutTimeoutMinutes <= 0) {
+                throw AzureCloudException.create("Set how many minutes to wait for the rollout");
+            }
+            AzureCredentials.ServicePrincipal servicePrincipal = BuildContext.of(run).getServicePrincipal(getAzureCredentialsId());
+            RolloutMonitor monitor = newRolloutMonitor();
+            List<RolloutMonitor.Rollout> rollouts = new ArrayList<>();
+            for (String hub : resolveIothubNames(servicePrincipal)) {
+                IoTHubClient client = IoTHubClient.create(servicePrincipal, getResourceGroup(), hub);
+                IoTHubClient.ConfigurationSummary latest = null;
+                for (IoTHubClient.ConfigurationSummary configuration : client.listConfigurations()) {
+                    if (isVersion(configuration) && (latest == null || isNewer(configuration, latest))) {
+                        latest = configuration;
+                    }
+                }
+                if (latest == null) {
+                    throw AzureCloudException.create(
+                            String.format("Deployment %s not found on IoT Hub %s", deploymentId, hub));
+                }
+                rollouts.add(monitor.start(hub, latest.getId(), Collections.<String>emptyList(), listener));
+            }
+            return rollouts;
+        } catch (AzureCloudException e) {
             throw new AbortException(e.getMessage());
         }
     }
 
+    private boolean isRetryable(DeployContext context, String hub, Exception e) {
+        if (isCliThrottled(e)) {
+            HubRateLimiter.get(hub, HubRateLimiter.Operation.CONFIGURATION).throttled(RestException.NO_RETRY_AFTER, 1);
+            return true;
+        }
+        if (e instanceof RestException) {
+            RestException restException = (RestException) e;
+            if (restException.isUnauthorized()) {
+                // The key may have been regenerated, sign with a fresh one
+                TokenCache.invalidateIothubOwnerKey(context.servicePrincipal.getSubscriptionId(), getResourceGroup(), hub);
+                return true;
+            }
+            return restException.isThrottled() || restException.getStatusCode() >= 500;
+        }
+        // Connection errors; failures reported by Azure CLI are not retried
+        return e instanceof IOException;
+    }
+
+    private static boolean isCliThrottled(Exception e) {
+        String message = e.getMessage();
+        return e instanceof AzureCloudException && message != null
+                && (message.contains("ThrottlingException") || message.contains("TooManyRequests"));
+    }
+
+    private static long retryDelaySeconds(Exception e, int attempt) {
+        if (e instanceof RestException && ((RestException) e).getRetryAfterSeconds() > 0) {
+            return ((RestException) e).getRetryAfterSeconds();
+        }
+        // Jittered, so that builds failing together don't retry together
+        return Math.min(TimeUnit.MILLISECONDS.toSeconds(HubRateLimiter.backoffMillis(attempt + 1)), MAX_RETRY_DELAY_SECONDS);
+    }
+
+    /**
+     * What the deployment to every hub shares: the deployment content, the target condition and the Azure CLI session.
+     */
+    private static final class DeployContext {
+        private final Run<?, ?> run;
+        private final FilePath workspace;
+        private final Launcher launcher;
+        private final AzureCredentials.ServicePrincipal servicePrincipal;
+        // The deployment content as JSON text, sent as is
+        private final String content;
+        private final String contentHash;
+        private final String deploymentJsonPath;
+        private final String condition;
+        private final AzSessionManager.Session session;
+        private final List<RolloutMonitor.Rollout> rollouts;
+
+        DeployContext(Run<?, ?> run, FilePath workspace, Launcher launcher,
+                      AzureCredentials.ServicePrincipal servicePrincipal, String content, String contentHash,
+                      String deploymentJsonPath, String condition, AzSessionManager.Session session,
+                      List<RolloutMonitor.Rollout> rollouts) {
+            this.run = run;
+            this.workspace = workspace;
+            this.launcher = launcher;
+            this.servicePrincipal = servicePrincipal;
+            this.content = content;
+            this.contentHash = contentHash;
+            this.deploymentJsonPath = deploymentJsonPath;
+            this.condition = condition;
+            this.session = session;
+            this.rollouts = rollouts;
+        }
+    }
+
+    /**
+     * The configuration deployed to a hub, and the previous versions it supersedes.
+     */
+    private static final class Deployment {
+        private String configurationId;
+        private final List<String> superseded = new ArrayList<>();
+
+        Deployment(String configurationId) {
+            this.configurationId = configurationId;
+        }
+    }
+
+    private static final class HubResult {
+        enum Status { DEPLOYED, SKIPPED, FAILED }
+
+        private final String hub;
+        private final Status status;
+        private final int attempts;
+        private final long durationMillis;
+        private final Exception error;
+
+        HubResult(String hub, Status status, int attempts, long durationMillis, Exception error) {
+            this.hub = hub;
+            this.status = status;
+            this.attempts = attempts;
+            this.durationMillis = durationMillis;
+            this.error = error;
+        }
+
+        String getTelemetryTaskType() {
+            return status == Status.SKIPPED
+                    ? Constants.TELEMETRY_VALUE_TASK_TYPE_DEPLOY_SKIPPED : Constants.TELEMETRY_VALUE_TASK_TYPE_DEPLOY;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %s in %.1fs, %d attempt(s)%s", hub, status,
+                    durationMillis / 1000.0, attempts, error == null ? "" : " - " + error.getMessage());
+        }
+    }
+
+    /**
+     * Deploys through the IoT Hub configurations REST API, without launching any process. The deployment is left
+     * untouched when the hub already has the same content, target condition and priority, so that targeted devices
+     * don't reconcile their modules for nothing.
+     *
+     * @return false if the deployment was unchanged and skipped
+     */
+    private boolean deployWithRest(DeployContext context, String hub, Deployment deployment, TaskListener listener)
+            throws IOException {
+        String content = context.content;
+        String contentHash = context.contentHash;
+        String condition = context.condition;
+        IoTHubClient client = IoTHubClient.create(context.servicePrincipal, getResourceGroup(), hub);
+        JsonNode created;
+        if (versionedDeploy) {
+            created = deployVersion(context, client, content, contentHash, deployment, listener);
+        } else {
+            JsonNode existing = client.getConfiguration(deploymentId);
+            if (existing != null && isUnchanged(existing, contentHash, condition)) {
+                listener.getLogger().println(String.format("Deployment %s is unchanged (content hash %s), skipping",
+                        deploymentId, contentHash));
+                return false;
+            }
+            if (existing != null) {
+                client.deleteConfiguration(deploymentId);
+            }
+            Map<String, String> labels = new HashMap<>();
+            labels.put(Constants.DEPLOYMENT_LABEL_CONTENT_HASH, contentHash);
+            created = client.createConfiguration(deploymentId, content, condition, Integer.parseInt(priority), labels);
+        }
+        if (created == null) {
+            return false;
+        }
+        listener.getLogger().println(MAPPER.writer(new ConfigurationPrettyPrinter()).writeValueAsString(created));
+        return true;
+    }
+
+    /**
+     * Whether an existing configuration matches the deployment. Configurations created before the hash label was
+     * introduced are compared by hashing their content.
+     */
+    private boolean isUnchanged(JsonNode existing, String contentHash, String condition) {
+        if (!condition.equals(existing.path("targetCondition").asText())
+                || Integer.parseInt(priority) != existing.path("priority").asInt()) {
+            return false;
+        }
+        JsonNode hashLabel = existing.path("labels").path(Constants.DEPLOYMENT_LABEL_CONTENT_HASH);
+        if (hashLabel.isTextual()) {
+            return contentHash.equals(hashLabel.textValue());
+        }
+        return existing.has("content") && contentHash.equals(JsonHash.hash(existing.get("content")));
+    }
+
+    /**
+     * Creates a new version of the deployment with the configured priority, or the priority of its previous
+     * versions if they were deployed with a higher one. The hub applies the most recently created of equal
+     * priorities, so the priority doesn't grow from version to version and never comes to outrank other
+     * deployments. Targeted devices move straight from the old version to the new one; the previous versions are
+     * recorded in the deployment as superseded, to be removed once the new one rolled out.
+     *
+     * @return the created version, or null if the latest version already has the same content and target condition
+     */
+    private JsonNode deployVersion(DeployContext context, IoTHubClient client, String content, String contentHash,
+                                   Deployment deployment, TaskListener listener) throws IOException {
+        Run<?, ?> run = context.run;
+        String condition = context.condition;
+        int versionPriority = Integer.parseInt(priority);
+        List<String> previousVersions = new ArrayList<>();
+        Set<String> existingIds = new HashSet<>();
+        IoTHubClient.ConfigurationSummary latest = null;
+        for (IoTHubClient.ConfigurationSummary configuration : client.listConfigurations()) {
+            existingIds.add(configuration.getId());
+            if (isVersion(configuration)) {
+                previousVersions.add(configuration.getId());
+                // Not above the previous versions, the hub applies the most recent of equal priorities
+                versionPriority = Math.max(versionPriority, configuration.getPriority());
+                if (latest == null || isNewer(configuration, latest)) {
+                    latest = configuration;
+                }
+            }
+        }
+
+        if (latest != null && condition.equals(latest.getTargetCondition())
+                && contentHash.equals(latest.getLabels().get(Constants.DEPLOYMENT_LABEL_CONTENT_HASH))) {
+            listener.getLogger().println(String.format("Deployment version %s is unchanged (content hash %s), skipping",
+                    latest.getId(), contentHash));
+            deployment.configurationId = latest.getId();
+            return null;
+        }
+
+        String versionId = versionId(String.valueOf(run.getNumber()));
+        if (existingIds.contains(versionId)) {
+            // Build numbers restarted, e.g. the job was recreated
+            versionId = versionId(run.getNumber() + "-" + Long.toString(System.currentTimeMillis(), 36));
+        }
+        Map<String, String> labels = new HashMap<>();
+        labels.put(Constants.DEPLOYMENT_LABEL_ID, deploymentId);
+        labels.put(Constants.DEPLOYMENT_LABEL_CONTENT_HASH, contentHash);
+        JsonNode created = client.createConfiguration(versionId, content, condition, versionPriority, labels);
+        listener.getLogger().println(String.format("Created deployment version %s with priority %d", versionId, versionPriority));
+
+        deployment.configurationId = versionId;
+        deployment.superseded.addAll(previousVersions);
+        return created;
+    }
+
+    /**
+     * Whether a configuration is the deployment itself or one of its versions.
+     */
+    private boolean isVersion(IoTHubClient.ConfigurationSummary configuration) {
+        return deploymentId.equals(configuration.getId())
+                || deploymentId.equals(configuration.getLabels().get(Constants.DEPLOYMENT_LABEL_ID));
+    }
+
+    /**
+     * Whether a version wins over another on the devices both target: the higher priority, or the most recently
+     * created of equal priorities.
+     */
+    private static boolean isNewer(IoTHubClient.ConfigurationSummary configuration, IoTHubClient.ConfigurationSummary other) {
+        if (configuration.getPriority() != other.getPriority()) {
+            return configuration.getPriority() > other.getPriority();
+        }
+        // ISO 8601 UTC timestamps sort as text
+        return StringUtils.defaultString(configuration.getCreatedTimeUtc())
+                .compareTo(StringUtils.defaultString(other.getCreatedTimeUtc())) > 0;
+    }
+
+    private String versionId(String suffix) {
+        String base = deploymentId;
+        int maxBaseLength = Constants.DEPLOYMENT_ID_MAX_LENGTH - suffix.length() - 1;
+        if (base.length() > maxBaseLength) {
+            base = base.substring(0, maxBaseLength);
+        }
+        return base + "-" + suffix;
+    }
+
+    /**
+     * Deploys with the azure-iot extension of Azure CLI.
+     */
+    private void deployWithCli(DeployContext context, String hub, TaskListener listener)
+            throws AzureCloudException, IOException, InterruptedException {
+        ShellExecuter azExecuter = new ShellExecuter(context.run, context.launcher, listener, context.workspace);
+        Map<String, String> envs = context.session.getEnvs();
+        // Azure CLI shares the configuration quota of the hub with the REST calls
+        HubRateLimiter limiter = HubRateLimiter.get(hub, HubRateLimiter.Operation.CONFIGURATION);
+        try {
+            limiter.acquire();
+            String scriptToDelete = "az iot edge deployment delete --hub-name " + hub + " --config-id " + deploymentId + "";
+            azExecuter.executeAZ(scriptToDelete, false, envs);
+        } catch (AzureCloudException e) {
+            if (!e.getMessage().contains("ConfigurationNotFound")) {
+                throw e;
+            }
+        }
+
+        limiter.acquire();
+        String scriptToDeploy = "az iot edge deployment create --config-id " + deploymentId + " --hub-name " + hub + " --content \"" + context.deploymentJsonPath + "\" --target-condition \"" + context.condition + "\" --priority " + priority + "";
+        azExecuter.executeAZ(scriptToDeploy, true, envs);
+    }
+
+    /**
+     * Prints configurations the way Azure CLI does, with a space after the colon of each field only.
+     */
+    private static final class ConfigurationPrettyPrinter extends DefaultPrettyPrinter {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public DefaultPrettyPrinter createInstance() {
+            return new ConfigurationPrettyPrinter();
+        }
+
+        @Override
+        public void writeObjectFieldValueSeparator(JsonGenerator jg) throws IOException {
+            jg.writeRaw(": ");
+        }
+    }
+
     @Extension
     @Symbol("azureIoTEdgeDeploy")
     public static final class DescriptorImpl extends BaseBuilder.DescriptorImpl {
         public static final String defaultPriority = "10";
+        public static final String defaultDeployMode = Constants.DEPLOY_MODE_REST;
+        public static final int defaultRolloutSuccessPercent = 100;
+
+        public ListBoxModel doFillDeployModeItems() {
+            ListBoxModel model = new ListBoxModel();
+            model.add("IoT Hub REST API", Constants.DEPLOY_MODE_REST);
+            model.add("Azure CLI", Constants.DEPLOY_MODE_CLI);
+            return model;
+        }
 
         @POST
         public FormValidation doCheckTargetCondition(@QueryParameter String value)
@@ -249,16 +848,23 @@ public class EdgeDeployBuilder extends BaseBuilder {
             return listResourceGroupItems(owner, azureCredentialsId);
         }
 
+        /**
+         * Suggests the hubs of the resource group; a comma separated list or a pattern may be typed instead.
+         */
         @POST
-        public ListBoxModel doFillIothubNameItems(@AncestorInPath Item owner,
-                                                  @QueryParameter String azureCredentialsId,
-                                                  @QueryParameter String resourceGroup) {
+        public ComboBoxModel doFillIothubNameItems(@AncestorInPath Item owner,
+                                                   @QueryParameter String azureCredentialsId,
+                                                   @QueryParameter String resourceGroup) {
             Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+            ComboBoxModel model = new ComboBoxModel();
             if (StringUtils.isNotBlank(azureCredentialsId) && StringUtils.isNotBlank(resourceGroup)) {
-                return listIothubNameItems(owner, azureCredentialsId, resourceGroup);
-            } else {
-                return new ListBoxModel(new ListBoxModel.Option(Constants.EMPTY_SELECTION, ""));
+                for (ListBoxModel.Option option : listIothubNameItems(owner, azureCredentialsId, resourceGroup)) {
+                    if (StringUtils.isNotBlank(option.value)) {
+                        model.add(option.value);
+                    }
+                }
             }
+            return model;
         }
 
         @POST
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.iotedge;
+
+import com.microsoft.jenkins.iotedge.util.Constants;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Pipeline step running {@link EdgeDeployBuilder} without holding an executor thread.
+ */
+public class EdgeDeployStep extends EdgeStep<EdgeDeployBuilder> {
+
+    @DataBoundConstructor
+    public EdgeDeployStep(final String azureCredentialsId, final String resourceGroup, final String rootPath) {
+        super(new EdgeDeployBuilder(azureCredentialsId, resourceGroup, rootPath));
+        // Pipelines written before the deploy mode existed deployed with Azure CLI, and keep doing so
+        builder.setDeployMode(Constants.DEPLOY_MODE_CLI);
+    }
+
+    public String getDeploymentFilePath() {
+        return builder.getDeploymentFilePath();
+    }
+
+    @DataBoundSetter
+    public void setDeploymentFilePath(String deploymentFilePath) {
+        builder.setDeploymentFilePath(deploymentFilePath);
+    }
+
+    public String getIothubName() {
+        return builder.getIothubName();
+    }
+
+    @DataBoundSetter
+    public void setIothubName(String iothubName) {
+        builder.setIothubName(iothubName);
+    }
+
+    public String getDeploymentType() {
+        return builder.getDeploymentType();
+    }
+
+    @DataBoundSetter
+    public void setDeploymentType(String deploymentType) {
+        builder.setDeploymentType(deploymentType);
+    }
+
+    public String getDeviceId() {
+        return builder.getDeviceId();
+    }
+
+    @DataBoundSetter
+    public void setDeviceId(String deviceId) {
+        builder.setDeviceId(deviceId);
+    }
+
+    public String getTargetCondition() {
+        return builder.getTargetCondition();
+    }
+
+    @DataBoundSetter
+    public void setTargetCondition(String targetCondition) {
+        builder.setTargetCondition(targetCondition);
+    }
+
+    public String getDeploymentId() {
+        return builder.getDeploymentId();
+    }
+
+    @DataBoundSetter
+    public void setDeploymentId(String deploymentId) {
+        builder.setDeploymentId(deploymentId);
+    }
+
+    public String getDeployMode() {
+        return builder.getDeployMode();
+    }
+
+    @DataBoundSetter
+    public void setDeployMode(String deployMode) {
+        builder.setDeployMode(deployMode);
+    }
+
+    public boolean isVersionedDeploy() {
+        return builder.isVersionedDeploy();
+    }
+
+    @DataBoundSetter
+    public void setVersionedDeploy(boolean versionedDeploy) {
+        builder.setVersionedDeploy(versionedDeploy);
+    }
+
+    public int getRolloutTimeoutMinutes() {
+        return builder.getRolloutTimeoutMinutes();
+    }
+
+    @DataBoundSetter
+    public void setRolloutTimeoutMinutes(int rolloutTimeoutMinutes) {
+        builder.setRolloutTimeoutMinutes(rolloutTimeoutMinutes);
+    }
+
+    public int getRolloutSuccessPercent() {
+        return builder.getRolloutSuccessPercent();
+    }
+
+    @DataBoundSetter
+    public void setRolloutSuccessPercent(int rolloutSuccessPercent) {
+        builder.setRolloutSuccessPercent(rolloutSuccessPercent);
+    }
+
+    public int getRolloutFailurePercent() {
+        return builder.getRolloutFailurePercent();
+    }
+
+    @DataBoundSetter
+    public void setRolloutFailurePercent(int rolloutFailurePercent) {
+        builder.setRolloutFailurePercent(rolloutFailurePercent);
+    }
+
+    public String getPriority() {
+        return builder.getPriority();
+    }
+
+    @DataBoundSetter
+    public void setPriority(String priority) {
+        builder.setPriority(priority);
+    }
+
+    /**
+     * Deploys, collecting the rollouts to wait for instead of polling them on this thread.
+     */
+    @Override
+    List<RolloutMonitor.Rollout> run(Run<?, ?> run, FilePath workspace, EnvVars environment, Launcher launcher,
+                                     TaskListener listener) throws InterruptedException, IOException {
+        builder.setStepEnvironment(environment);
+        List<RolloutMonitor.Rollout> rollouts = new ArrayList<>();
+        builder.deploy(run, workspace, launcher, listener, rollouts);
+        return rollouts;
+    }
+
+    @Override
+    RolloutMonitor getRolloutMonitor() {
+        return builder.newRolloutMonitor();
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends EdgeStepDescriptor {
+
+        public DescriptorImpl() {
+            super(EdgeDeployBuilder.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "azureIoTEdgeDeploy";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Azure IoT Edge Deploy";
+        }
+    }
+}
@@ -43,7 +43,6 @@ import javax.servlet.ServletException;
 import javax.ws.rs.POST;
 import java.io.*;
 import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -82,6 +81,17 @@ public class EdgeGenConfigBuilder extends BaseBuilder {
 
     private String deploymentFilePath;
 
+    public boolean isNativeGenConfig() {
+        return nativeGenConfig;
+    }
+
+    @DataBoundSetter
+    public void setNativeGenConfig(boolean nativeGenConfig) {
+        this.nativeGenConfig = nativeGenConfig;
+    }
+
+    private boolean nativeGenConfig;
+
     @DataBoundConstructor
     public EdgeGenConfigBuilder() {
         super();
@@ -98,11 +108,19 @@ public class EdgeGenConfigBuilder extends BaseBuilder {
             String deploymentFileName = file.getName();
 
             // Generate .env file for iotedgedev use
-            writeEnvFile(Paths.get(workspace.getRemote(), Constants.IOTEDGEDEV_ENV_FILENAME).toString(), "", "", deploymentFileDir, deploymentFileName);
-
-            ShellExecuter executer = new ShellExecuter(run, launcher, listener, new File(workspace.getRemote()));
-            Map<String, String> envs = new HashMap<>();
-            executer.executeAZ(String.format("iotedgedev genconfig --file \"%s\" --platform %s", deploymentManifestFilePath, defaultPlatform), true, envs);
+            writeEnvFile(run, workspace, "", "", deploymentFileDir, deploymentFileName);
+
+            if (nativeGenConfig) {
+                long start = System.currentTimeMillis();
+                DeploymentTemplate.generate(workspace, deploymentManifestFilePath, deploymentFilePath, defaultPlatform,
+                        getEnvironment(run, listener));
+                listener.getLogger().println(String.format("Generated %s from %s in %dms", deploymentFilePath,
+                        deploymentManifestFilePath, System.currentTimeMillis() - start));
+            } else {
+                ShellExecuter executer = new ShellExecuter(run, launcher, listener, workspace);
+                Map<String, String> envs = new HashMap<>();
+                executer.executeAZ(String.format("iotedgedev genconfig --file \"%s\" --platform %s", deploymentManifestFilePath, defaultPlatform), true, envs);
+            }
 
             AzureIoTEdgePlugin.sendEvent(run.getClass().getSimpleName(), Constants.TELEMETRY_VALUE_TASK_TYPE_GEN_CONFIG, null, run.getFullDisplayName(), null, null);
         } catch (AzureCloudException e) {
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.iotedge;
+
+import hudson.Extension;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * Pipeline step running {@link EdgeGenConfigBuilder} without holding an executor thread.
+ */
+public class EdgeGenConfigStep extends EdgeStep<EdgeGenConfigBuilder> {
+
+    @DataBoundConstructor
+    public EdgeGenConfigStep() {
+        super(new EdgeGenConfigBuilder());
+    }
+
+    public String getDeploymentManifestFilePath() {
+        return builder.getDeploymentManifestFilePath();
+    }
+
+    @DataBoundSetter
+    public void setDeploymentManifestFilePath(String deploymentManifestFilePath) {
+        builder.setDeploymentManifestFilePath(deploymentManifestFilePath);
+    }
+
+    public String getDefaultPlatform() {
+        return builder.getDefaultPlatform();
+    }
+
+    @DataBoundSetter
+    public void setDefaultPlatform(String defaultPlatform) {
+        builder.setDefaultPlatform(defaultPlatform);
+    }
+
+    public String getDeploymentFilePath() {
+        return builder.getDeploymentFilePath();
+    }
+
+    @DataBoundSetter
+    public void setDeploymentFilePath(String deploymentFilePath) {
+        builder.setDeploymentFilePath(deploymentFilePath);
+    }
+
+    public boolean isNativeGenConfig() {
+        return builder.isNativeGenConfig();
+    }
+
+    @DataBoundSetter
+    public void setNativeGenConfig(boolean nativeGenConfig) {
+        builder.setNativeGenConfig(nativeGenConfig);
+    }
+
+
+    @Extension
+    public static final class DescriptorImpl extends EdgeStepDescriptor {
+
+        public DescriptorImpl() {
+            super(EdgeGenConfigBuilder.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "azureIoTEdgeGenConfig";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Azure IoT Edge Generate Deployment Manifest";
+        }
+    }
+}
@@ -9,17 +9,14 @@ package com.microsoft.jenkins.iotedge;
 import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.cloudbees.plugins.credentials.common.StandardUsernamePasswordCredentials;
 import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.microsoft.azure.management.Azure;
-import com.microsoft.azure.management.containerregistry.AccessKeyType;
-import com.microsoft.azure.management.containerregistry.Registries;
-import com.microsoft.azure.management.containerregistry.Registry;
-import com.microsoft.azure.management.containerregistry.RegistryCredentials;
 import com.microsoft.azure.management.containerregistry.implementation.ContainerRegistryManager;
 import com.microsoft.jenkins.iotedge.model.AzureCloudException;
-import com.microsoft.jenkins.iotedge.util.AzureUtils;
 import com.microsoft.jenkins.iotedge.util.Constants;
 import com.microsoft.jenkins.iotedge.util.Env;
+import com.microsoft.jenkins.iotedge.util.RegistryClient;
+import com.microsoft.jenkins.iotedge.util.Util;
 import hudson.AbortException;
 import hudson.Extension;
 import hudson.FilePath;
@@ -43,9 +40,13 @@ import javax.servlet.ServletException;
 import javax.ws.rs.POST;
 import java.io.*;
 import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class EdgePushBuilder extends BaseBuilder {
 
@@ -87,6 +88,39 @@ public class EdgePushBuilder extends BaseBuilder {
 
     private String bypassModules = DescriptorImpl.defaultModulesToBuild;
 
+    public boolean isSkipUnchangedImages() {
+        return skipUnchangedImages;
+    }
+
+    @DataBoundSetter
+    public void setSkipUnchangedImages(boolean skipUnchangedImages) {
+        this.skipUnchangedImages = skipUnchangedImages;
+    }
+
+    private boolean skipUnchangedImages;
+
+    public boolean isNativePush() {
+        return nativePush;
+    }
+
+    @DataBoundSetter
+    public void setNativePush(boolean nativePush) {
+        this.nativePush = nativePush;
+    }
+
+    private boolean nativePush;
+
+    public int getMaxConcurrentPushes() {
+        return maxConcurrentPushes;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentPushes(int maxConcurrentPushes) {
+        this.maxConcurrentPushes = maxConcurrentPushes;
+    }
+
+    private int maxConcurrentPushes = DescriptorImpl.defaultMaxConcurrentPushes;
+
     private String dockerRegistryType;
 
     private String acrName;
@@ -131,13 +165,10 @@ public class EdgePushBuilder extends BaseBuilder {
 
             if (isAcr) {
                 credentialId = getAzureCredentialsId();
-                final Azure azureClient = AzureUtils.buildClient(run.getParent(), credentialId);
-                Registries rs = azureClient.containerRegistries();
-                Registry r = rs.getByResourceGroup(getResourceGroup(), acrName);
-                RegistryCredentials rc = r.getCredentials();
-                username = rc.username();
-                url = r.loginServerUrl();
-                password = rc.accessKeys().get(AccessKeyType.PRIMARY);
+                BuildContext.RegistryLogin login = BuildContext.of(run).getAcrLogin(run, credentialId, getResourceGroup(), acrName);
+                username = login.getUsername();
+                url = login.getUrl();
+                password = login.getPassword();
             } else {
                 url = dockerRegistryEndpoint.getUrl();
                 credentialId = dockerRegistryEndpoint.getCredentialsId();
@@ -148,14 +179,38 @@ public class EdgePushBuilder extends BaseBuilder {
                 }
             }
 
+            // Modules an incremental build found unchanged since they were pushed don't need to be pushed again
+            Set<String> modulesToBypass = new LinkedHashSet<>(Util.splitList(bypassModules));
+            ModuleBuildAction buildAction = run.getAction(ModuleBuildAction.class);
+            if (buildAction != null && !buildAction.getUnchangedModules().isEmpty()) {
+                modulesToBypass.addAll(buildAction.getUnchangedModules());
+                listener.getLogger().println("Skipping unchanged modules: " + StringUtils.join(buildAction.getUnchangedModules(), ", "));
+            }
+
             // Generate .env file for iotedgedev use
-            writeEnvFile(Paths.get(workspace.getRemote(), Constants.IOTEDGEDEV_ENV_FILENAME).toString(), url, bypassModules, "", "");
+            writeEnvFile(run, workspace, url, StringUtils.join(modulesToBypass, ","), "", "");
+
+            if (skipUnchangedImages) {
+                List<String> unchanged = findPushedModules(run, workspace, launcher, listener, url, username, password, modulesToBypass);
+                if (!unchanged.isEmpty()) {
+                    modulesToBypass.addAll(unchanged);
+                    listener.getLogger().println("Skipping modules already in the registry: " + StringUtils.join(unchanged, ", "));
+                    writeEnvFile(run, workspace, url, StringUtils.join(modulesToBypass, ","), "", "");
+                }
+            }
 
-            ShellExecuter executer = new ShellExecuter(run, launcher, listener, new File(workspace.getRemote()));
-            Map<String, String> envs = new HashMap<>();
-            envs.put(Constants.IOTEDGEDEV_ENV_REGISTRY_USERNAME, username);
-            envs.put(Constants.IOTEDGEDEV_ENV_REGISTRY_PASSWORD, password);
-            executer.executeAZ(String.format("iotedgedev push --no-build --file \"%s\" --platform %s", deploymentManifestFilePath, defaultPlatform), true, envs);
+            if (nativePush) {
+                pushImages(run, workspace, listener, url, username, password, modulesToBypass);
+            } else {
+                ShellExecuter executer = new ShellExecuter(run, launcher, listener, workspace);
+                Map<String, String> envs = new HashMap<>();
+                envs.put(Constants.IOTEDGEDEV_ENV_REGISTRY_USERNAME, username);
+                envs.put(Constants.IOTEDGEDEV_ENV_REGISTRY_PASSWORD, password);
+                executer.executeAZ(String.format("iotedgedev push --no-build --file \"%s\" --platform %s", deploymentManifestFilePath, defaultPlatform), true, envs);
+            }
+            if (buildAction != null) {
+                recordPushedModules(run, buildAction);
+            }
 
             AzureIoTEdgePlugin.sendEvent(run.getClass().getSimpleName(), Constants.TELEMETRY_VALUE_TASK_TYPE_PUSH, null, run.getFullDisplayName(), null, null);
         } catch (AzureCloudException e) {
@@ -164,10 +219,135 @@ public class EdgePushBuilder extends BaseBuilder {
         }
     }
 
+    /**
+     * Pushes the module images with {@link DockerPusher}, at most {@link #maxConcurrentPushes} at a time, instead of
+     * starting iotedgedev.
+     */
+    private void pushImages(Run<?, ?> run, FilePath workspace, TaskListener listener, String url, String username,
+                            String password, Set<String> bypassed) throws AzureCloudException, IOException, InterruptedException {
+        List<ModuleBuildPlanner.ModuleBuild> plan = ModuleBuildPlanner.plan(workspace, deploymentManifestFilePath,
+                Util.splitList(defaultPlatform), getEnvironment(run, listener));
+        Set<String> images = new LinkedHashSet<>();
+        for (ModuleBuildPlanner.ModuleBuild build : plan) {
+            if (!bypassed.contains(build.getModule())) {
+                images.add(build.getImage());
+            }
+        }
+        if (images.isEmpty()) {
+            listener.getLogger().println("No module images to push");
+            return;
+        }
+        // Jobs saved before the limit existed load it as 0
+        int concurrency = maxConcurrentPushes > 0 ? maxConcurrentPushes : DescriptorImpl.defaultMaxConcurrentPushes;
+        listener.getLogger().println(String.format("Pushing %d images, %d at a time: %s",
+                images.size(), Math.min(images.size(), concurrency), StringUtils.join(images, ", ")));
+        Map<String, String> failed = DockerPusher.push(workspace, new ArrayList<>(images), url, username, password,
+                concurrency, listener);
+        if (!failed.isEmpty()) {
+            throw AzureCloudException.create(String.format("Push failed for %d of %d images: %s",
+                    failed.size(), images.size(), StringUtils.join(failed.keySet(), ", ")));
+        }
+    }
+
+    /**
+     * Compares the images about to be pushed with the tags in the registry, and returns the modules whose images
+     * are all there already. An image is there when the manifest digest of the tag, read with a HEAD request, is
+     * one the local image was pushed or pulled with, or when the tag points to the same image config. Images that
+     * can't be compared are pushed. The credentials of the push are only sent to its own registry, images of other
+     * registries are read anonymously.
+     */
+    private List<String> findPushedModules(Run<?, ?> run, FilePath workspace, Launcher launcher, TaskListener listener,
+                                           String url, String username, String password, Set<String> bypassed)
+            throws IOException, InterruptedException {
+        List<ModuleBuildPlanner.ModuleBuild> plan;
+        try {
+            plan = ModuleBuildPlanner.plan(workspace, deploymentManifestFilePath, Util.splitList(defaultPlatform),
+                    getEnvironment(run, listener));
+        } catch (AzureCloudException e) {
+            listener.getLogger().println("Can't compare images with the registry, pushing all of them: " + e.getMessage());
+            return new ArrayList<>();
+        }
+        ShellExecuter executer = new ShellExecuter(run, launcher, listener, workspace);
+        Map<String, RegistryClient> clients = new HashMap<>();
+        Set<String> pushed = new LinkedHashSet<>();
+        Set<String> changed = new HashSet<>();
+        for (ModuleBuildPlanner.ModuleBuild build : plan) {
+            if (bypassed.contains(build.getModule()) || changed.contains(build.getModule())) {
+                continue;
+            }
+            RegistryClient.ImageReference reference = RegistryClient.parseImage(build.getImage());
+            RegistryClient client = clients.get(reference.getRegistry());
+            if (client == null) {
+                client = RegistryClient.isSameRegistry(url, reference.getRegistry())
+                        ? new RegistryClient(reference.getRegistry(), username, password)
+                        : new RegistryClient(reference.getRegistry(), null, null);
+                clients.put(reference.getRegistry(), client);
+            }
+            if (isInRegistry(executer, client, reference, build.getImage(), listener)) {
+                pushed.add(build.getModule());
+            } else {
+                changed.add(build.getModule());
+            }
+        }
+        pushed.removeAll(changed);
+        return new ArrayList<>(pushed);
+    }
+
+    private boolean isInRegistry(ShellExecuter executer, RegistryClient client, RegistryClient.ImageReference reference,
+                                 String image, TaskListener listener) throws IOException, InterruptedException {
+        String inspect;
+        try {
+            inspect = executer.executeAZ(String.format("docker image inspect --format \"{{.Id}} {{json .RepoDigests}}\" \"%s\"", image), false).trim();
+        } catch (AzureCloudException e) {
+            // Not built on this agent, leave it to iotedgedev
+            return false;
+        }
+        int separator = inspect.indexOf(' ');
+        String id = separator < 0 ? inspect : inspect.substring(0, separator);
+        try {
+            String remoteDigest = client.getManifestDigest(reference.getRepository(), reference.getTag());
+            if (remoteDigest == null) {
+                return false;
+            }
+            String name = image.substring(0, image.length() - reference.getTag().length() - 1);
+            if (separator >= 0) {
+                for (JsonNode repoDigest : new ObjectMapper().readTree(inspect.substring(separator + 1))) {
+                    if (repoDigest.asText().equals(name + "@" + remoteDigest)) {
+                        return true;
+                    }
+                }
+            }
+            return id.equals(client.getConfigDigest(reference.getRepository(), reference.getTag()));
+        } catch (IOException e) {
+            listener.getLogger().println(String.format("Can't compare %s with the registry, pushing it: %s", image, e.getMessage()));
+            return false;
+        }
+    }
+
+    /**
+     * Remembers the hashes of the modules just pushed, so that later incremental builds can skip them.
+     */
+    private void recordPushedModules(Run<?, ?> run, ModuleBuildAction buildAction) throws IOException {
+        List<String> bypassed = Util.splitList(bypassModules);
+        List<String> platforms = Util.splitList(defaultPlatform);
+        Map<String, ModuleHashIndex.Entry> pushed = new HashMap<>();
+        for (Map.Entry<String, ModuleHashIndex.Entry> entry : buildAction.getEntries().entrySet()) {
+            String key = entry.getKey();
+            String module = key.substring(0, key.indexOf('/'));
+            String platform = key.substring(key.indexOf('/') + 1);
+            if (!bypassed.contains(module) && platforms.contains(platform)) {
+                pushed.put(key, entry.getValue());
+            }
+        }
+        ModuleHashIndex.record(run.getParent(), pushed);
+    }
+
     @Extension
     @Symbol("azureIoTEdgePush")
     public static final class DescriptorImpl extends BaseBuilder.DescriptorImpl {
 
+        public static final int defaultMaxConcurrentPushes = 3;
+
         public DockerRegistryEndpoint.DescriptorImpl getDockerRegistryEndpointDescriptor() {
             final Jenkins jenkins = Jenkins.getInstance();
             if (jenkins != null) {
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.iotedge;
+
+import hudson.Extension;
+import org.jenkinsci.plugins.docker.commons.credentials.DockerRegistryEndpoint;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+/**
+ * Pipeline step running {@link EdgePushBuilder} without holding an executor thread.
+ */
+public class EdgePushStep extends EdgeStep<EdgePushBuilder> {
+
+    @DataBoundConstructor
+    public EdgePushStep(final String azureCredentialsId, final String resourceGroup) {
+        super(new EdgePushBuilder(azureCredentialsId, resourceGroup));
+    }
+
+    public String getDockerRegistryType() {
+        return builder.getDockerRegistryType();
+    }
+
+    @DataBoundSetter
+    public void setDockerRegistryType(String dockerRegistryType) {
+        builder.setDockerRegistryType(dockerRegistryType);
+    }
+
+    public DockerRegistryEndpoint getDockerRegistryEndpoint() {
+        return builder.getDockerRegistryEndpoint();
+    }
+
+    @DataBoundSetter
+    public void setDockerRegistryEndpoint(DockerRegistryEndpoint dockerRegistryEndpoint) {
+        builder.setDockerRegistryEndpoint(dockerRegistryEndpoint);
+    }
+
+    public String getAcrName() {
+        return builder.getAcrName();
+    }
+
+    @DataBoundSetter
+    public void setAcrName(String acrName) {
+        builder.setAcrName(acrName);
+    }
+
+    public String getBypassModules() {
+        return builder.getBypassModules();
+    }
+
+    @DataBoundSetter
+    public void setBypassModules(String bypassModules) {
+        builder.setBypassModules(bypassModules);
+    }
+
+    public boolean isSkipUnchangedImages() {
+        return builder.isSkipUnchangedImages();
+    }
+
+    @DataBoundSetter
+    public void setSkipUnchangedImages(boolean skipUnchangedImages) {
+        builder.setSkipUnchangedImages(skipUnchangedImages);
+    }
+
+    public boolean isNativePush() {
+        return builder.isNativePush();
+    }
+
+    @DataBoundSetter
+    public void setNativePush(boolean nativePush) {
+        builder.setNativePush(nativePush);
+    }
+
+    public int getMaxConcurrentPushes() {
+        return builder.getMaxConcurrentPushes();
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentPushes(int maxConcurrentPushes) {
+        builder.setMaxConcurrentPushes(maxConcurrentPushes);
+    }
+
+    public String getDeploymentManifestFilePath() {
+        return builder.getDeploymentManifestFilePath();
+    }
+
+    @DataBoundSetter
+    public void setDeploymentManifestFilePath(String deploymentManifestFilePath) {
+        builder.setDeploymentManifestFilePath(deploymentManifestFilePath);
+    }
+
+    public String getDefaultPlatform() {
+        return builder.getDefaultPlatform();
+    }
+
+    @DataBoundSetter
+    public void setDefaultPlatform(String defaultPlatform) {
+        builder.setDefaultPlatform(defaultPlatform);
+    }
+
+
+    @Extension
+    public static final class DescriptorImpl extends EdgeStepDescriptor {
+
+        public DescriptorImpl() {
+            super(EdgePushBuilder.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "azureIoTEdgePush";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Azure IoT Edge Push";
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.iotedge;
+
+import com.google.common.collect.ImmutableSet;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Pipeline step waiting for a deployment made by {@link EdgeDeployStep} to roll out. It only needs the run, so it
+ * can be called outside {@code node} and doesn't hold an executor of an agent while the devices apply the
+ * deployment.
+ */
+public class EdgeRolloutWaitStep extends EdgeStep<EdgeDeployBuilder> {
+
+    @DataBoundConstructor
+    public EdgeRolloutWaitStep(final String azureCredentialsId, final String resourceGroup, final String iothubName,
+                               final String deploymentId) {
+        super(new EdgeDeployBuilder(azureCredentialsId, resourceGroup, ""));
+        builder.setIothubName(iothubName);
+        builder.setDeploymentId(deploymentId);
+        builder.setRolloutTimeoutMinutes(DescriptorImpl.defaultRolloutTimeoutMinutes);
+    }
+
+    public String getIothubName() {
+        return builder.getIothubName();
+    }
+
+    public String getDeploymentId() {
+        return builder.getDeploymentId();
+    }
+
+    public int getRolloutTimeoutMinutes() {
+        return builder.getRolloutTimeoutMinutes();
+    }
+
+    @DataBoundSetter
+    public void setRolloutTimeoutMinutes(int rolloutTimeoutMinutes) {
+        builder.setRolloutTimeoutMinutes(rolloutTimeoutMinutes);
+    }
+
+    public int getRolloutSuccessPercent() {
+        return builder.getRolloutSuccessPercent();
+    }
+
+    @DataBoundSetter
+    public void setRolloutSuccessPercent(int rolloutSuccessPercent) {
+        builder.setRolloutSuccessPercent(rolloutSuccessPercent);
+    }
+
+    public int getRolloutFailurePercent() {
+        return builder.getRolloutFailurePercent();
+    }
+
+    @DataBoundSetter
+    public void setRolloutFailurePercent(int rolloutFailurePercent) {
+        builder.setRolloutFailurePercent(rolloutFailurePercent);
+    }
+
+    /**
+     * Looks up the latest version of the deployment on each hub, the rollouts are then watched like those of
+     * {@link EdgeDeployStep}. The workspace, environment and launcher are null outside {@code node}.
+     */
+    @Override
+    List<RolloutMonitor.Rollout> run(Run<?, ?> run, FilePath workspace, EnvVars environment, Launcher launcher,
+                                     TaskListener listener) throws InterruptedException, IOException {
+        return builder.watchRollouts(run, listener);
+    }
+
+    @Override
+    RolloutMonitor getRolloutMonitor() {
+        return builder.newRolloutMonitor();
+    }
+
+    @Extension
+    public static final class DescriptorImpl extends EdgeStepDescriptor {
+
+        public static final int defaultRolloutTimeoutMinutes = 30;
+
+        public DescriptorImpl() {
+            super(EdgeDeployBuilder.class);
+        }
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return ImmutableSet.of(Run.class, TaskListener.class);
+        }
+
+        @Override
+        public String getFunctionName() {
+            return "azureIoTEdgeWaitForRollout";
+        }
+
+        @Override
+        public String getDisplayName() {
+            return "Azure IoT Edge Wait For Rollout";
+        }
+    }
+}
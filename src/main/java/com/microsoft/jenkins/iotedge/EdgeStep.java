@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.iotedge;
+
+import com.google.common.collect.ImmutableSet;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Descriptor;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.tasks.Builder;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Pipeline step running one of the builders, with the same parameters as the builder. See
+ * {@link EdgeStepExecution} for how it runs.
+ */
+public abstract class EdgeStep<B extends BaseBuilder> extends Step {
+
+    protected final B builder;
+
+    protected EdgeStep(B builder) {
+        this.builder = builder;
+    }
+
+    public String getAzureCredentialsId() {
+        return builder.getAzureCredentialsId();
+    }
+
+    @DataBoundSetter
+    public void setAzureCredentialsId(String azureCredentialsId) {
+        builder.setAzureCredentialsId(azureCredentialsId);
+    }
+
+    public String getResourceGroup() {
+        return builder.getResourceGroup();
+    }
+
+    @DataBoundSetter
+    public void setResourceGroup(String resourceGroup) {
+        builder.setResourceGroup(resourceGroup);
+    }
+
+    public String getRootPath() {
+        return builder.getRootPath();
+    }
+
+    @DataBoundSetter
+    public void setRootPath(String rootPath) {
+        builder.setRootPath(rootPath);
+    }
+
+    @Override
+    public StepExecution start(StepContext context) throws Exception {
+        return new EdgeStepExecution(context, this);
+    }
+
+    /**
+     * Runs the builder in the environment of the step.
+     *
+     * @return the rollouts left to watch, empty unless the step deploys and waits for rollouts
+     */
+    List<RolloutMonitor.Rollout> run(Run<?, ?> run, FilePath workspace, EnvVars environment, Launcher launcher,
+                                     TaskListener listener) throws InterruptedException, IOException {
+        builder.setStepEnvironment(environment);
+        builder.perform(run, workspace, launcher, listener);
+        return Collections.emptyList();
+    }
+
+    /**
+     * The monitor of the rollouts returned by {@link #run}, or null if the step doesn't wait for rollouts.
+     */
+    RolloutMonitor getRolloutMonitor() {
+        return null;
+    }
+
+    public abstract static class EdgeStepDescriptor extends StepDescriptor {
+
+        private final Class<? extends BaseBuilder> builderClass;
+
+        protected EdgeStepDescriptor(Class<? extends BaseBuilder> builderClass) {
+            this.builderClass = builderClass;
+        }
+
+        /**
+         * The descriptor of the builder the step runs. The step form is the builder form, bound to this descriptor
+         * for its defaults, fill and check methods and help.
+         */
+        public Descriptor<Builder> getBuilderDescriptor() {
+            return Jenkins.getInstance().getDescriptorOrDie(builderClass);
+        }
+
+        @Override
+        public Set<? extends Class<?>> getRequiredContext() {
+            return ImmutableSet.of(Run.class, FilePath.class, EnvVars.class, Launcher.class, TaskListener.class);
+        }
+    }
+}
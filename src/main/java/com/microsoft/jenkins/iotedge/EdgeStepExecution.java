@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.iotedge;
+
+import com.microsoft.azure.util.AzureCredentials;
+import com.microsoft.jenkins.iotedge.model.AzureCloudException;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.Launcher;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import org.apache.commons.lang.StringUtils;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs an {@link EdgeStep} without holding the CPS thread or an executor while it waits. The builder runs on a
+ * pooled thread of its own; the rollouts it leaves to watch are then polled by a small scheduler of the plugin, so
+ * that a pending rollout only costs a scheduled task. The polls make HTTP calls, which is why they stay off the
+ * shared Jenkins timer, but never wait for the IoT Hub rate limit: that wait is part of the next schedule. The
+ * rollouts are kept with the execution, a restart during the wait resumes polling them where it stopped. A restart
+ * while the builder runs fails the step, as the builder state is lost with the JVM.
+ */
+public class EdgeStepExecution extends StepExecution {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(
+            new NamingThreadFactory(new DaemonThreadFactory(), "Azure IoT Edge step"));
+    private static final ScheduledExecutorService POLLER = Executors.newScheduledThreadPool(
+            Math.max(1, Integer.getInteger(EdgeStepExecution.class.getName() + ".pollThreads", 4)),
+            new NamingThreadFactory(new DaemonThreadFactory(), "Azure IoT Edge rollout poll"));
+
+    private final transient EdgeStep<?> step;
+    private final String credentialsId;
+    private final String resourceGroup;
+    private RolloutMonitor monitor;
+    // Set once the builder is done, null while it runs. Replaced after each poll rather than changed, so that the
+    // status can be read without waiting for a poll
+    private volatile List<RolloutMonitor.Rollout> rollouts;
+    private final List<String> failures = new ArrayList<>();
+    private transient volatile Future<?> task;
+    private volatile boolean stopped;
+
+    EdgeStepExecution(StepContext context, EdgeStep<?> step) {
+        super(context);
+        this.step = step;
+        this.credentialsId = step.getAzureCredentialsId();
+        this.resourceGroup = step.getResourceGroup();
+    }
+
+    @Override
+    public boolean start() throws Exception {
+        final StepContext context = getContext();
+        final Run<?, ?> run = context.get(Run.class);
+        final FilePath workspace = context.get(FilePath.class);
+        final EnvVars environment = context.get(EnvVars.class);
+        final Launcher launcher = context.get(Launcher.class);
+        final TaskListener listener = context.get(TaskListener.class);
+        task = EXECUTOR.submit(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    List<RolloutMonitor.Rollout> pending = step.run(run, workspace, environment, launcher, listener);
+                    if (stopped) {
+                        return;
+                    }
+                    if (pending.isEmpty()) {
+                        context.onSuccess(null);
+                        return;
+                    }
+                    monitor = step.getRolloutMonitor();
+                    rollouts = new ArrayList<>(pending);
+                    schedule(RolloutMonitor.MIN_POLL_SECONDS * 1000);
+                } catch (Exception e) {
+                    context.onFailure(e);
+                }
+            }
+        });
+        return false;
+    }
+
+    private void schedule(long delayMillis) {
+        if (stopped) {
+            return;
+        }
+        task = POLLER.schedule(new Runnable() {
+            @Override
+            public void run() {
+                poll();
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Polls the rollouts that are due, then schedules the next poll or completes the step.
+     */
+    private synchronized void poll() {
+        if (stopped) {
+            return;
+        }
+        StepContext context = getContext();
+        try {
+            final TaskListener listener = context.get(TaskListener.class);
+            final AzureCredentials.ServicePrincipal servicePrincipal =
+                    BuildContext.of(context.get(Run.class)).getServicePrincipal(credentialsId);
+            List<RolloutMonitor.Rollout> remaining = new ArrayList<>(rollouts);
+            long next = pollDue(remaining, failures, listener, new Poller() {
+                @Override
+                public long poll(RolloutMonitor.Rollout rollout) throws AzureCloudException, IOException {
+                    return monitor.poll(servicePrincipal, resourceGroup, rollout, listener);
+                }
+            });
+            rollouts = remaining;
+            if (stopped) {
+                return;
+            }
+            if (!remaining.isEmpty()) {
+                schedule(Math.max(0, next - System.currentTimeMillis()));
+            } else if (failures.isEmpty()) {
+                context.onSuccess(null);
+            } else {
+                context.onFailure(new AbortException(
+                        "Rollout failed on IoT Hub(s): " + StringUtils.join(failures, ", ")));
+            }
+        } catch (Exception e) {
+            context.onFailure(e);
+        }
+    }
+
+    /**
+     * Polls one rollout.
+     */
+    interface Poller {
+        /**
+         * @see RolloutMonitor#poll
+         */
+        long poll(RolloutMonitor.Rollout rollout) throws AzureCloudException, IOException;
+    }
+
+    /**
+     * Polls the rollouts that are due. A rollout that succeeds is removed, one that fails is removed and its hub
+     * added to the failures, so that the rollouts on the other hubs are still watched to the end.
+     *
+     * @return when the next of the remaining rollouts is due
+     */
+    static long pollDue(List<RolloutMonitor.Rollout> rollouts, List<String> failures, TaskListener listener,
+                        Poller poller) {
+        long now = System.currentTimeMillis();
+        long next = Long.MAX_VALUE;
+        Iterator<RolloutMonitor.Rollout> iterator = rollouts.iterator();
+        while (iterator.hasNext()) {
+            RolloutMonitor.Rollout rollout = iterator.next();
+            if (rollout.due <= now) {
+                try {
+                    long wait = poller.poll(rollout);
+                    if (wait < 0) {
+                        iterator.remove();
+                        continue;
+                    }
+                    rollout.due = System.currentTimeMillis() + wait;
+                } catch (AzureCloudException | IOException e) {
+                    listener.getLogger().println(String.format("Deployment to %s failed: %s",
+                            rollout.getHub(), e.getMessage()));
+                    failures.add(rollout.getHub());
+                    iterator.remove();
+                    continue;
+                }
+            }
+            next = Math.min(next, rollout.due);
+        }
+        return next;
+    }
+
+    @Override
+    public void stop(Throwable cause) throws Exception {
+        // A poll running now neither completes the step nor schedules the next one
+        stopped = true;
+        Future<?> current = task;
+        if (current != null) {
+            current.cancel(true);
+        }
+        getContext().onFailure(cause);
+    }
+
+    @Override
+    public void onResume() {
+        if (rollouts == null) {
+            getContext().onFailure(new AbortException("Jenkins restarted while the step was running, run it again"));
+        } else {
+            schedule(0);
+        }
+    }
+
+    @Override
+    public String getStatus() {
+        List<RolloutMonitor.Rollout> current = rollouts;
+        if (current == null) {
+            return "running the builder";
+        }
+        List<String> hubs = new ArrayList<>();
+        for (RolloutMonitor.Rollout rollout : current) {
+            hubs.add(rollout.getHub());
+        }
+        return "waiting for the rollout on " + StringUtils.join(hubs, ", ");
+    }
+}
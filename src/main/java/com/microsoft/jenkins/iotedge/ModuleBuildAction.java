@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.iotedge;
+
+import hudson.model.InvisibleAction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Module hashes computed by an incremental build, handed over to the push step of the same run.
+ */
+public class ModuleBuildAction extends InvisibleAction {
+
+    private final Map<String, ModuleHashIndex.Entry> entries;
+    private final List<String> unchangedModules;
+
+    public ModuleBuildAction(Map<String, ModuleHashIndex.Entry> entries, List<String> unchangedModules) {
+        this.entries = new HashMap<>(entries);
+        this.unchangedModules = new ArrayList<>(unchangedModules);
+    }
+
+    /**
+     * Hash and image of every module build, keyed by {@link ModuleHashIndex#key(ModuleBuildPlanner.ModuleBuild)}.
+     */
+    public Map<String, ModuleHashIndex.Entry> getEntries() {
+        return Collections.unmodifiableMap(entries);
+    }
+
+    /**
+     * Modules already pushed with the same content for all platforms, which don't need to be pushed again.
+     */
+    public List<String> getUnchangedModules() {
+        return Collections.unmodifiableList(unchangedModules);
+    }
+}
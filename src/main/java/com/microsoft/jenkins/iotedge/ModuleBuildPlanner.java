@@ -0,0 +1,371 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.iotedge;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.jenkins.iotedge.model.AzureCloudException;
+import com.microsoft.jenkins.iotedge.util.Constants;
+import com.microsoft.jenkins.iotedge.util.Util;
+import hudson.EnvVars;
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Works out which module images a deployment manifest needs, the same way iotedgedev does, and in which order they
+ * can be built. One build is planned for each module and platform referenced by the manifest; a build depends on
+ * another one when its Dockerfile starts FROM the image the other one produces.
+ */
+public final class ModuleBuildPlanner {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    static final Pattern MODULE_PLACEHOLDER = Pattern.compile("\\$\\{MODULES\\.([^.}]+)(?:\\.([^}]+))?}");
+    static final Pattern MODULE_DIR_PLACEHOLDER = Pattern.compile("\\$\\{MODULEDIR<([^>]+)>(?:\\.([^}]+))?}");
+    private static final Pattern FROM_INSTRUCTION = Pattern.compile("^\\s*FROM\\s+(?:--\\S+\\s+)*(\\S+)", Pattern.CASE_INSENSITIVE);
+    private static final Pattern ENV_LINE = Pattern.compile("^([A-Za-z_][A-Za-z0-9_]*)=\"?(.*?)\"?\\s*$");
+
+    /**
+     * The docker build of one module for one platform.
+     */
+    public static final class ModuleBuild implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String module;
+        private final String platform;
+        private final String dockerfile;
+        private final String contextPath;
+        private final List<String> buildOptions;
+        private final String image;
+        private final Set<ModuleBuild> dependencies = new LinkedHashSet<>();
+
+        ModuleBuild(String module, String platform, String dockerfile, String contextPath,
+                    List<String> buildOptions, String image) {
+            this.module = module;
+            this.platform = platform;
+            this.dockerfile = dockerfile;
+            this.contextPath = contextPath;
+            this.buildOptions = buildOptions;
+            this.image = image;
+        }
+
+        public String getModule() {
+            return module;
+        }
+
+        public String getPlatform() {
+            return platform;
+        }
+
+        public String getImage() {
+            return image;
+        }
+
+        public String getDockerfile() {
+            return dockerfile;
+        }
+
+        public String getContextPath() {
+            return contextPath;
+        }
+
+        public List<String> getBuildOptions() {
+            return Collections.unmodifiableList(buildOptions);
+        }
+
+        public Set<ModuleBuild> getDependencies() {
+            return Collections.unmodifiableSet(dependencies);
+        }
+
+        /**
+         * The docker build command, run from the workspace.
+         */
+        public String getCommand() {
+            StringBuilder command = new StringBuilder("docker build --rm");
+            command.append(" -f \"").append(dockerfile).append('"');
+            command.append(" -t \"").append(image).append('"');
+            for (String option : buildOptions) {
+                command.append(' ').append(option);
+            }
+            command.append(" \"").append(contextPath).append('"');
+            return command.toString();
+        }
+
+        @Override
+        public String toString() {
+            return module + "/" + platform;
+        }
+    }
+
+    /**
+     * The image settings of a module, read from its module.json.
+     */
+    static final class ModuleConfig {
+        private final FilePath moduleDir;
+        private final String repository;
+        private final String version;
+        private final JsonNode platforms;
+        private final List<String> buildOptions;
+        private final String contextPath;
+
+        private ModuleConfig(FilePath moduleDir, String repository, String version, JsonNode platforms,
+                             List<String> buildOptions, String contextPath) {
+            this.moduleDir = moduleDir;
+            this.repository = repository;
+            this.version = version;
+            this.platforms = platforms;
+            this.buildOptions = buildOptions;
+            this.contextPath = contextPath;
+        }
+
+        static ModuleConfig read(FilePath moduleDir, EnvVars vars) throws AzureCloudException, IOException, InterruptedException {
+            FilePath moduleJson = moduleDir.child(Constants.EDGE_MODULE_CONFIG_FILENAME);
+            if (!moduleJson.exists()) {
+                throw AzureCloudException.create("Module config not found: " + moduleJson.getRemote());
+            }
+            JsonNode image = readJson(moduleJson).path("image");
+            List<String> buildOptions = new ArrayList<>();
+            for (JsonNode option : image.path("buildOptions")) {
+                buildOptions.add(vars.expand(option.asText()));
+            }
+            return new ModuleConfig(moduleDir, vars.expand(image.path("repository").asText()),
+                    vars.expand(image.path("tag").path("version").asText()), image.path("tag").path("platforms"),
+                    buildOptions, moduleDir.child(image.path("contextPath").asText(".")).getRemote());
+        }
+
+        String getName() {
+            return moduleDir.getName();
+        }
+
+        /**
+         * The image name iotedgedev gives the module for a platform.
+         */
+        String getImage(String platform) throws AzureCloudException {
+            getDockerfile(platform);
+            return (repository + ":" + version + "-" + platform).toLowerCase();
+        }
+
+        String getDockerfile(String platform) throws AzureCloudException {
+            JsonNode dockerfile = platforms.path(platform);
+            if (!dockerfile.isTextual()) {
+                throw AzureCloudException.create(String.format("Module %s has no Dockerfile for platform %s",
+                        getName(), platform));
+            }
+            return moduleDir.child(dockerfile.textValue()).getRemote();
+        }
+    }
+
+    /**
+     * Plans the builds of the modules referenced by the manifest.
+     *
+     * @param workspace        the solution root, where iotedgedev runs
+     * @param manifestPath     the deployment manifest template, relative to the workspace
+     * @param defaultPlatforms platforms used for modules the manifest references without one
+     * @param envVars          variables to expand in module.json and Dockerfiles, in addition to the .env file
+     * @return the builds, each one after the builds it depends on
+     */
+    public static List<ModuleBuild> plan(FilePath workspace, String manifestPath, List<String> defaultPlatforms,
+                                         Map<String, String> envVars) throws AzureCloudException, IOException, InterruptedException {
+        return Util.act(workspace, new Plan(manifestPath, new ArrayList<>(defaultPlatforms), new HashMap<>(envVars)));
+    }
+
+    /**
+     * Plans on the node of the workspace, so that module.json files and Dockerfiles are read where they are and only
+     * the plan is sent back.
+     */
+    private static final class Plan extends MasterToSlaveFileCallable<List<ModuleBuild>> {
+        private static final long serialVersionUID = 1L;
+
+        private final String manifestPath;
+        private final List<String> defaultPlatforms;
+        private final Map<String, String> envVars;
+
+        Plan(String manifestPath, List<String> defaultPlatforms, Map<String, String> envVars) {
+            this.manifestPath = manifestPath;
+            this.defaultPlatforms = defaultPlatforms;
+            this.envVars = envVars;
+        }
+
+        @Override
+        public List<ModuleBuild> invoke(File workspace, VirtualChannel channel) throws IOException, InterruptedException {
+            try {
+                return planLocally(new FilePath(workspace), manifestPath, defaultPlatforms, envVars);
+            } catch (AzureCloudException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+    }
+
+    private static List<ModuleBuild> planLocally(FilePath workspace, String manifestPath, List<String> defaultPlatforms,
+                                                 Map<String, String> envVars) throws AzureCloudException, IOException, InterruptedException {
+        EnvVars vars = new EnvVars(readDotEnv(workspace.child(Constants.IOTEDGEDEV_ENV_FILENAME)));
+        vars.putAll(envVars);
+
+        Map<String, Set<String>> references = new LinkedHashMap<>();
+        collectReferences(readJson(workspace.child(manifestPath)), defaultPlatforms, references);
+
+        Map<String, ModuleBuild> buildsByImage = new LinkedHashMap<>();
+        for (Map.Entry<String, Set<String>> reference : references.entrySet()) {
+            ModuleConfig module = ModuleConfig.read(workspace.child(reference.getKey()), vars);
+            for (String platform : reference.getValue()) {
+                String tag = module.getImage(platform);
+                if (!buildsByImage.containsKey(tag)) {
+                    buildsByImage.put(tag, new ModuleBuild(module.getName(), platform, module.getDockerfile(platform),
+                            module.contextPath, module.buildOptions, tag));
+                }
+            }
+        }
+
+        for (ModuleBuild build : buildsByImage.values()) {
+            for (String base : readBaseImages(new FilePath(workspace.getChannel(), build.dockerfile), vars)) {
+                ModuleBuild dependency = buildsByImage.get(base.toLowerCase());
+                if (dependency != null && dependency != build) {
+                    build.dependencies.add(dependency);
+                }
+            }
+        }
+        return sort(buildsByImage.values());
+    }
+
+    /**
+     * Finds the modules the manifest references, mapped to the module directory relative to the workspace.
+     */
+    static void collectReferences(JsonNode node, List<String> defaultPlatforms, Map<String, Set<String>> references) {
+        if (node.isTextual()) {
+            Matcher matcher = MODULE_PLACEHOLDER.matcher(node.textValue());
+            while (matcher.find()) {
+                addReference(Constants.EDGE_MODULES_FOLDERNAME + "/" + matcher.group(1), matcher.group(2),
+                        defaultPlatforms, references);
+            }
+            matcher = MODULE_DIR_PLACEHOLDER.matcher(node.textValue());
+            while (matcher.find()) {
+                addReference(matcher.group(1), matcher.group(2), defaultPlatforms, references);
+            }
+        } else {
+            Iterator<JsonNode> children = node.elements();
+            while (children.hasNext()) {
+                collectReferences(children.next(), defaultPlatforms, references);
+            }
+        }
+    }
+
+    private static void addReference(String moduleDir, String platform, List<String> defaultPlatforms,
+                                     Map<String, Set<String>> references) {
+        Set<String> platforms = references.get(moduleDir);
+        if (platforms == null) {
+            platforms = new LinkedHashSet<>();
+            references.put(moduleDir, platforms);
+        }
+        if (platform != null) {
+            platforms.add(platform);
+        } else {
+            platforms.addAll(defaultPlatforms);
+        }
+    }
+
+    /**
+     * Orders builds so that each one comes after its dependencies.
+     */
+    static List<ModuleBuild> sort(Iterable<ModuleBuild> builds) throws AzureCloudException {
+        List<ModuleBuild> sorted = new ArrayList<>();
+        Set<ModuleBuild> visiting = new LinkedHashSet<>();
+        for (ModuleBuild build : builds) {
+            visit(build, visiting, sorted);
+        }
+        return sorted;
+    }
+
+    private static void visit(ModuleBuild build, Set<ModuleBuild> visiting, List<ModuleBuild> sorted)
+            throws AzureCloudException {
+        if (sorted.contains(build)) {
+            return;
+        }
+        if (!visiting.add(build)) {
+            throw AzureCloudException.create("Module images depend on each other: " + visiting);
+        }
+        for (ModuleBuild dependency : build.dependencies) {
+            visit(dependency, visiting, sorted);
+        }
+        visiting.remove(build);
+        sorted.add(build);
+    }
+
+    private static List<String> readBaseImages(FilePath dockerfile, EnvVars vars) throws IOException, InterruptedException {
+        List<String> images = new ArrayList<>();
+        if (!dockerfile.exists()) {
+            return images;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(dockerfile.read(), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher matcher = FROM_INSTRUCTION.matcher(line);
+                if (matcher.find()) {
+                    images.add(vars.expand(matcher.group(1)));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return images;
+    }
+
+    /**
+     * Reads the KEY="value" lines of a .env file.
+     */
+    static Map<String, String> readDotEnv(FilePath file) throws IOException, InterruptedException {
+        Map<String, String> values = new LinkedHashMap<>();
+        if (!file.exists()) {
+            return values;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(file.read(), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                Matcher matcher = ENV_LINE.matcher(line);
+                if (matcher.matches()) {
+                    values.put(matcher.group(1), matcher.group(2));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return values;
+    }
+
+    private static JsonNode readJson(FilePath file) throws IOException, InterruptedException {
+        InputStream stream = file.read();
+        try {
+            return MAPPER.readTree(stream);
+        } finally {
+            stream.close();
+        }
+    }
+
+    private ModuleBuildPlanner() {
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.iotedge;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.Striped;
+import hudson.FilePath;
+import hudson.model.Job;
+import hudson.remoting.VirtualChannel;
+import hudson.util.AtomicFileWriter;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+import java.util.regex.Pattern;
+
+/**
+ * Content hashes of module build contexts, and the index of the hashes last pushed for a job. A module whose hash
+ * is in the index doesn't need to be built or pushed again.
+ */
+public final class ModuleHashIndex {
+
+    private static final String INDEX_FILENAME = "azure-iot-edge-module-index.json";
+    private static final String DOCKER_IGNORE_FILENAME = ".dockerignore";
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    /**
+     * Hash of a module build for one platform, and the image it was pushed as.
+     */
+    public static final class Entry implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String hash;
+        private final String image;
+
+        public Entry(String hash, String image) {
+            this.hash = hash;
+            this.image = image;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public String getImage() {
+            return image;
+        }
+    }
+
+    public static String key(ModuleBuildPlanner.ModuleBuild build) {
+        return build.getModule() + "/" + build.getPlatform();
+    }
+
+    /**
+     * Hashes the builds of a plan. The hash of a build covers its build context, Dockerfile, platform and build
+     * options, and the hashes of the builds it depends on, but not the image tag, so that an unchanged module whose
+     * version was bumped can be re-tagged instead of rebuilt.
+     */
+    public static Map<ModuleBuildPlanner.ModuleBuild, String> hash(FilePath workspace, List<ModuleBuildPlanner.ModuleBuild> plan)
+            throws IOException, InterruptedException {
+        Map<ModuleBuildPlanner.ModuleBuild, String> hashes = new HashMap<>();
+        // The plan is ordered, dependencies are hashed first
+        for (ModuleBuildPlanner.ModuleBuild build : plan) {
+            MessageDigest digest = newDigest();
+            digest.update(new FilePath(workspace.getChannel(), build.getContextPath()).act(new ContextHasher(build.getDockerfile()))
+                    .getBytes(StandardCharsets.UTF_8));
+            digest.update(build.getPlatform().getBytes(StandardCharsets.UTF_8));
+            for (String option : build.getBuildOptions()) {
+                digest.update(option.getBytes(StandardCharsets.UTF_8));
+            }
+            for (ModuleBuildPlanner.ModuleBuild dependency : build.getDependencies()) {
+                digest.update(hashes.get(dependency).getBytes(StandardCharsets.UTF_8));
+            }
+            hashes.put(build, toHex(digest.digest()));
+        }
+        return hashes;
+    }
+
+    /**
+     * Loads the index of the job, keyed by {@link #key(ModuleBuildPlanner.ModuleBuild)}.
+     */
+    public static Map<String, Entry> load(Job<?, ?> job) throws IOException {
+        File file = new File(job.getRootDir(), INDEX_FILENAME);
+        Map<String, Entry> entries = new HashMap<>();
+        Lock lock = LOCKS.get(file.getPath());
+        lock.lock();
+        try {
+            if (!file.exists()) {
+                return entries;
+            }
+            JsonNode root = MAPPER.readTree(file);
+            Iterator<Map.Entry<String, JsonNode>> fields = root.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                entries.put(field.getKey(), new Entry(field.getValue().path("hash").asText(),
+                        field.getValue().path("image").asText()));
+            }
+        } finally {
+            lock.unlock();
+        }
+        return entries;
+    }
+
+    /**
+     * Records pushed module builds in the index of the job.
+     */
+    public static void record(Job<?, ?> job, Map<String, Entry> pushed) throws IOException {
+        File file = new File(job.getRootDir(), INDEX_FILENAME);
+        Lock lock = LOCKS.get(file.getPath());
+        lock.lock();
+        try {
+            Map<String, Entry> entries = load(job);
+            entries.putAll(pushed);
+            ObjectNode root = MAPPER.createObjectNode();
+            for (Map.Entry<String, Entry> entry : new TreeMap<>(entries).entrySet()) {
+                ObjectNode node = root.putObject(entry.getKey());
+                node.put("hash", entry.getValue().getHash());
+                node.put("image", entry.getValue().getImage());
+            }
+            AtomicFileWriter writer = new AtomicFileWriter(file);
+            try {
+                writer.write(MAPPER.writerWithDefaultPrettyPrinter().writeValueAsString(root));
+                writer.commit();
+            } finally {
+                writer.abort();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Locks of the index files, by path. A fixed set shared by all jobs, so that it doesn't grow with them
+    private static final Striped<Lock> LOCKS = Striped.lock(32);
+
+    /**
+     * Hashes a build context on the agent: the files docker would send, honouring .dockerignore, and the
+     * Dockerfile. Files are read with NIO and hashed in parallel.
+     */
+    static final class ContextHasher extends MasterToSlaveFileCallable<String> {
+        private static final long serialVersionUID = 1L;
+
+        private final String dockerfile;
+
+        ContextHasher(String dockerfile) {
+            this.dockerfile = dockerfile;
+        }
+
+        @Override
+        public String invoke(File contextDir, VirtualChannel channel) throws IOException, InterruptedException {
+            final Path root = contextDir.toPath();
+            final DockerIgnore ignore = DockerIgnore.read(new File(contextDir, DOCKER_IGNORE_FILENAME));
+            final List<String> files = new ArrayList<>();
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    String path = relativize(root, dir);
+                    if (!path.isEmpty() && ignore.isIgnored(path) && !ignore.hasExceptions()) {
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    String path = relativize(root, file);
+                    if (attrs.isRegularFile() && !ignore.isIgnored(path)) {
+                        files.add(path);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            Collections.sort(files);
+
+            List<Future<byte[]>> fileHashes = new ArrayList<>();
+            ExecutorService executor = Executors.newFixedThreadPool(
+                    Math.max(1, Math.min(files.size(), Runtime.getRuntime().availableProcessors())));
+            try {
+                for (final String file : files) {
+                    fileHashes.add(executor.submit(new Callable<byte[]>() {
+                        @Override
+                        public byte[] call() throws IOException {
+                            return hashFile(root.resolve(file));
+                        }
+                    }));
+                }
+                MessageDigest digest = newDigest();
+                for (int i = 0; i < files.size(); i++) {
+                    digest.update(files.get(i).getBytes(StandardCharsets.UTF_8));
+                    digest.update((byte) 0);
+                    digest.update(fileHashes.get(i).get());
+                }
+                File dockerfileFile = new File(dockerfile);
+                if (dockerfileFile.isFile()) {
+                    digest.update(hashFile(dockerfileFile.toPath()));
+                }
+                return toHex(digest.digest());
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to hash build context " + contextDir, e.getCause());
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    static byte[] hashFile(Path file) throws IOException {
+        MessageDigest digest = newDigest();
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+        try {
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            channel.close();
+        }
+        return digest.digest();
+    }
+
+    private static String relativize(Path root, Path path) {
+        return root.relativize(path).toString().replace(File.separatorChar, '/');
+    }
+
+    /**
+     * The exclusion rules of a .dockerignore file. The last matching rule decides, rules starting with ! re-include
+     * paths, and a rule matching a directory matches everything in it.
+     */
+    static final class DockerIgnore {
+        private final List<Pattern> patterns = new ArrayList<>();
+        private final List<Boolean> exceptions = new ArrayList<>();
+
+        static DockerIgnore read(File file) throws IOException {
+            DockerIgnore ignore = new DockerIgnore();
+            if (file.isFile()) {
+                BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+                try {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        ignore.add(line);
+                    }
+                } finally {
+                    reader.close();
+                }
+            }
+            return ignore;
+        }
+
+        void add(String rule) {
+            rule = rule.trim();
+            if (rule.isEmpty() || rule.startsWith("#")) {
+                return;
+            }
+            boolean exception = rule.startsWith("!");
+            if (exception) {
+                rule = rule.substring(1).trim();
+            }
+            while (rule.startsWith("/") || rule.startsWith("./")) {
+                rule = rule.substring(rule.startsWith("/") ? 1 : 2);
+            }
+            while (rule.endsWith("/")) {
+                rule = rule.substring(0, rule.length() - 1);
+            }
+            if (rule.isEmpty()) {
+                return;
+            }
+            patterns.add(Pattern.compile(toRegex(rule) + "(/.*)?"));
+            exceptions.add(exception);
+        }
+
+        boolean hasExceptions() {
+            return exceptions.contains(Boolean.TRUE);
+        }
+
+        boolean isIgnored(String path) {
+            boolean ignored = false;
+            for (int i = 0; i < patterns.size(); i++) {
+                if (patterns.get(i).matcher(path).matches()) {
+                    ignored = !exceptions.get(i);
+                }
+            }
+            return ignored;
+        }
+
+        private static String toRegex(String rule) {
+            StringBuilder regex = new StringBuilder();
+            StringBuilder literal = new StringBuilder();
+            for (int i = 0; i < rule.length(); i++) {
+                char c = rule.charAt(i);
+                if (c != '*' && c != '?') {
+                    literal.append(c);
+                    continue;
+                }
+                if (literal.length() > 0) {
+                    regex.append(Pattern.quote(literal.toString()));
+                    literal.setLength(0);
+                }
+                if (c == '?') {
+                    regex.append("[^/]");
+                } else if (i + 1 < rule.length() && rule.charAt(i + 1) == '*') {
+                    i++;
+                    if (i + 1 < rule.length() && rule.charAt(i + 1) == '/') {
+                        i++;
+                        regex.append("(.*/)?");
+                    } else {
+                        regex.append(".*");
+                    }
+                } else {
+                    regex.append("[^/]*");
+                }
+            }
+            if (literal.length() > 0) {
+                regex.append(Pattern.quote(literal.toString()));
+            }
+            return regex.toString();
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        return BaseEncoding.base16().lowerCase().encode(bytes);
+    }
+
+    private ModuleHashIndex() {
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.iotedge;
+
+import com.microsoft.azure.util.AzureCredentials;
+import com.microsoft.jenkins.iotedge.model.AzureCloudException;
+import com.microsoft.jenkins.iotedge.model.RestException;
+import com.microsoft.jenkins.iotedge.util.IoTHubClient;
+import com.microsoft.jenkins.iotedge.util.TokenCache;
+import hudson.model.TaskListener;
+import org.apache.commons.lang.StringUtils;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Waits for the devices targeted by a deployment to apply it. The system metrics of the configuration are polled,
+ * conditionally on their ETag, at an interval that starts short and doubles while nothing changes, since the hub
+ * only recomputes them every few minutes and its read quota is shared with production traffic. The runtime status
+ * of the modules is queried only when the metrics change.
+ */
+public final class RolloutMonitor implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final long MIN_POLL_SECONDS =
+            Math.max(1, Integer.getInteger(RolloutMonitor.class.getName() + ".minPollSeconds", 15));
+    static final long MAX_POLL_SECONDS =
+            Math.max(MIN_POLL_SECONDS, Integer.getInteger(RolloutMonitor.class.getName() + ".maxPollSeconds", 240));
+
+    enum Verdict { PENDING, SUCCEEDED, FAILED }
+
+    private final int timeoutMinutes;
+    private final int successPercent;
+    private final int failurePercent;
+
+    /**
+     * @param timeoutMinutes how long to wait for the rollout to succeed
+     * @param successPercent share of the targeted devices that must report success
+     * @param failurePercent share of the targeted devices that may report failure before the rollout fails
+     */
+    public RolloutMonitor(int timeoutMinutes, int successPercent, int failurePercent) {
+        this.timeoutMinutes = timeoutMinutes;
+        this.successPercent = successPercent;
+        this.failurePercent = failurePercent;
+    }
+
+    static Verdict evaluate(IoTHubClient.ConfigurationMetrics metrics, int successPercent, int failurePercent) {
+        if (metrics == null || metrics.getTargeted() == 0) {
+            return Verdict.PENDING;
+        }
+        if (metrics.getReportedFailed() * 100 > (long) failurePercent * metrics.getTargeted()) {
+            return Verdict.FAILED;
+        }
+        if (metrics.getReportedSuccessful() * 100 >= (long) successPercent * metrics.getTargeted()) {
+            return Verdict.SUCCEEDED;
+        }
+        return Verdict.PENDING;
+    }
+
+    static long nextPollSeconds(long current, boolean changed) {
+        return changed ? MIN_POLL_SECONDS : Math.min(current * 2, MAX_POLL_SECONDS);
+    }
+
+    /**
+     * Where the rollout of a configuration on a hub stands. Kept between polls, and across restarts by Pipeline.
+     */
+    public static final class Rollout implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String hub;
+        private final String configurationId;
+        private final long deadline;
+        private IoTHubClient.ConfigurationMetrics metrics;
+        private String etag;
+        private String runtimeStatus = "";
+        private long interval = MIN_POLL_SECONDS;
+        // Previous versions of the deployment, removed once the rollout succeeds
+        private final List<String> superseded = new ArrayList<>();
+        private boolean succeeded;
+        // When the rollout is due to be polled again, for callers polling several rollouts
+        long due;
+
+        Rollout(String hub, String configurationId, long deadline) {
+            this.hub = hub;
+            this.configurationId = configurationId;
+            this.deadline = deadline;
+        }
+
+        public String getHub() {
+            return hub;
+        }
+
+        public String getConfigurationId() {
+            return configurationId;
+        }
+    }
+
+    /**
+     * Starts watching the rollout of a configuration, the timeout runs from now.
+     *
+     * @param superseded previous versions of the deployment, removed once the rollout succeeds and kept to fall
+     *                   back to if it fails
+     */
+    public Rollout start(String hub, String configurationId, List<String> superseded, TaskListener listener) {
+        listener.getLogger().println(String.format("Waiting up to %d minutes for %d%% of the devices to apply deployment %s",
+                timeoutMinutes, successPercent, configurationId));
+        Rollout rollout = new Rollout(hub, configurationId, System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(timeoutMinutes));
+        rollout.superseded.addAll(superseded);
+        return rollout;
+    }
+
+    /**
+     * Polls a rollout once.
+     *
+     * @return milliseconds to wait before polling again, or -1 if enough devices report success
+     * @throws AzureCloudException if too many devices report failure, the configuration is removed or the
+     *                             timeout expired
+     */
+    public long poll(AzureCredentials.ServicePrincipal servicePrincipal, String resourceGroup, Rollout rollout,
+                     TaskListener listener) throws AzureCloudException, IOException {
+        PrintStream logger = listener.getLogger();
+        if (rollout.succeeded) {
+            return removeSuperseded(servicePrincipal, resourceGroup, rollout, logger);
+        }
+        String configurationId = rollout.configurationId;
+        boolean changed = false;
+        boolean throttled = false;
+        long wait = 0;
+        try {
+            // A new client per poll, the SAS token of a client expires after a few minutes. It doesn't wait for the
+            // rate limit, the wait becomes part of the next poll
+            IoTHubClient client = IoTHubClient.create(servicePrincipal, resourceGroup, rollout.hub).withoutWaiting();
+            IoTHubClient.ConfigurationMetrics latest = client.getConfigurationMetrics(configurationId, rollout.etag);
+            if (latest != null) {
+                if (rollout.metrics == null || !latest.toString().equals(rollout.metrics.toString())) {
+                    // Kept only once the runtime status is read too, a poll cut short reads both again
+                    String runtimeStatus = describe(client.getModuleRuntimeStatus(configurationId));
+                    changed = true;
+                    rollout.metrics = latest;
+                    rollout.runtimeStatus = runtimeStatus;
+                    logger.println(String.format("Deployment %s: %s", configurationId, latest));
+                    if (!rollout.runtimeStatus.isEmpty()) {
+                        logger.println("Module runtime status: " + rollout.runtimeStatus);
+                    }
+                }
+                rollout.etag = latest.getEtag();
+            }
+        } catch (RestException e) {
+            if (e.isNotFound()) {
+                throw AzureCloudException.create(String.format("Deployment %s was removed during the rollout", configurationId));
+            }
+            if (!e.isThrottled() && !e.isUnauthorized() && e.getStatusCode() < 500) {
+                throw e;
+            }
+            if (e.isUnauthorized()) {
+                // The key may have been regenerated, sign with a fresh one
+                TokenCache.invalidateIothubOwnerKey(servicePrincipal.getSubscriptionId(), resourceGroup, rollout.hub);
+            }
+            if (e.isThrottled()) {
+                throttled = true;
+            } else {
+                logger.println("Reading the rollout status failed, trying again later: " + e.getMessage());
+            }
+            wait = Math.max(0, e.getRetryAfterSeconds());
+        } catch (IOException e) {
+            // Connection errors, the rollout goes on regardless
+            logger.println("Reading the rollout status failed, trying again later: " + e.getMessage());
+        }
+
+        IoTHubClient.ConfigurationMetrics metrics = rollout.metrics;
+        Verdict verdict = evaluate(metrics, successPercent, failurePercent);
+        if (verdict == Verdict.SUCCEEDED) {
+            logger.println(String.format("Deployment %s rolled out: %s", configurationId, metrics));
+            rollout.succeeded = true;
+            return removeSuperseded(servicePrincipal, resourceGroup, rollout, logger);
+        }
+        if (verdict != Verdict.PENDING || rollout.deadline <= System.currentTimeMillis()) {
+            if (!rollout.superseded.isEmpty()) {
+                logger.println(String.format("Keeping the previous deployment versions %s, remove %s to fall back to them",
+                        StringUtils.join(rollout.superseded, ", "), configurationId));
+            }
+        }
+        if (verdict == Verdict.FAILED) {
+            throw AzureCloudException.create(String.format("Deployment %s failed on more than %d%% of the devices: %s%s",
+                    configurationId, failurePercent, metrics,
+                    rollout.runtimeStatus.isEmpty() ? "" : ". Module runtime status: " + rollout.runtimeStatus));
+        }
+        long remaining = rollout.deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            throw AzureCloudException.create(String.format("Deployment %s did not roll out within %d minutes: %s",
+                    configurationId, timeoutMinutes, metrics == null ? "no metrics yet" : metrics));
+        }
+        if (throttled) {
+            // Only the wait for the rate limit, the interval doesn't back off
+            return Math.min(remaining, TimeUnit.SECONDS.toMillis(Math.max(wait, 1)));
+        }
+        rollout.interval = nextPollSeconds(rollout.interval, changed);
+        return Math.min(remaining, TimeUnit.SECONDS.toMillis(Math.max(wait, rollout.interval)));
+    }
+
+    /**
+     * Polls the configuration until enough devices report success, blocking the calling thread.
+     *
+     * @throws AzureCloudException if too many devices report failure, the configuration is removed or the
+     *                             timeout expires first
+     */
+    public void await(AzureCredentials.ServicePrincipal servicePrincipal, String resourceGroup, String hub,
+                      String configurationId, List<String> superseded, TaskListener listener)
+            throws AzureCloudException, IOException, InterruptedException {
+        Rollout rollout = start(hub, configurationId, superseded, listener);
+        long wait;
+        while ((wait = poll(servicePrincipal, resourceGroup, rollout, listener)) >= 0) {
+            TimeUnit.MILLISECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * Removes the versions a succeeded rollout supersedes, without waiting for the rate limit: a removal over the
+     * limit is resumed by the next poll.
+     *
+     * @return milliseconds to wait before polling again, or -1 once they are removed
+     */
+    private static long removeSuperseded(AzureCredentials.ServicePrincipal servicePrincipal, String resourceGroup,
+                                         Rollout rollout, PrintStream logger) {
+        try {
+            IoTHubClient client = null;
+            while (!rollout.superseded.isEmpty()) {
+                if (client == null) {
+                    client = IoTHubClient.create(servicePrincipal, resourceGroup, rollout.hub).withoutWaiting();
+                }
+                String id = rollout.superseded.get(0);
+                client.deleteConfiguration(id);
+                logger.println("Removed previous deployment version " + id);
+                rollout.superseded.remove(0);
+            }
+        } catch (RestException e) {
+            if (e.isThrottled()) {
+                return TimeUnit.SECONDS.toMillis(Math.max(1, e.getRetryAfterSeconds()));
+            }
+            logger.println("Failed to remove previous deployment versions, they are removed with the next version: "
+                    + e.getMessage());
+        } catch (IOException e) {
+            logger.println("Failed to remove previous deployment versions, they are removed with the next version: "
+                    + e.getMessage());
+        }
+        return -1;
+    }
+
+    /**
+     * Removes previous versions of a deployment. A version that can't be removed is only logged, it still carries
+     * the label of the deployment and is removed with the next version.
+     */
+    static void removeVersions(AzureCredentials.ServicePrincipal servicePrincipal, String resourceGroup, String hub,
+                               List<String> versions, PrintStream logger) {
+        if (versions.isEmpty()) {
+            return;
+        }
+        logger.println("Removing previous deployment versions: " + StringUtils.join(versions, ", "));
+        try {
+            IoTHubClient client = IoTHubClient.create(servicePrincipal, resourceGroup, hub);
+            for (String id : versions) {
+                client.deleteConfiguration(id);
+            }
+        } catch (IOException e) {
+            logger.println("Failed to remove previous deployment versions, they are removed with the next version: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Formats runtime status counts as {@code module: status count, status count; ...}.
+     */
+    static String describe(Map<String, Map<String, Integer>> statuses) {
+        List<String> modules = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Integer>> module : statuses.entrySet()) {
+            List<String> counts = new ArrayList<>();
+            for (Map.Entry<String, Integer> count : module.getValue().entrySet()) {
+                counts.add(count.getKey() + " " + count.getValue());
+            }
+            modules.add(module.getKey() + ": " + StringUtils.join(counts, ", "));
+        }
+        return StringUtils.join(modules, "; ");
+    }
+}
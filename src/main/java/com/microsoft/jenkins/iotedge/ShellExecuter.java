@@ -9,100 +9,194 @@ package com.microsoft.jenkins.iotedge;
 import com.microsoft.jenkins.iotedge.model.AzureCloudException;
 import com.microsoft.jenkins.iotedge.model.AzureCredentialCache;
 import com.microsoft.jenkins.iotedge.model.AzureCredentialsValidationException;
-import com.microsoft.jenkins.iotedge.util.Constants;
+import com.microsoft.jenkins.iotedge.util.TailBuffer;
+import hudson.FilePath;
 import hudson.Launcher.ProcStarter;
 import hudson.Launcher;
 import hudson.Proc;
+import hudson.console.LineTransformationOutputStream;
 import hudson.model.Run;
 import hudson.model.TaskListener;
-import org.omg.PortableInterceptor.SYSTEM_EXCEPTION;
+import jenkins.util.Timer;
 
 import java.io.*;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 public class ShellExecuter {
 
+    /**
+     * Bytes of command output kept in memory to report failures. The rest is only streamed to the build log.
+     */
+    public static final int DEFAULT_OUTPUT_TAIL_SIZE =
+            Integer.getInteger(ShellExecuter.class.getName() + ".outputTailSize", 64 * 1024);
+
+    /**
+     * Minutes a command may run before it is killed, 0 to wait forever.
+     */
+    public static final long DEFAULT_COMMAND_TIMEOUT_MINUTES =
+            Long.getLong(ShellExecuter.class.getName() + ".commandTimeoutMinutes", 120);
+
+    private static final Logger LOGGER = Logger.getLogger(ShellExecuter.class.getName());
+
     public TaskListener listener;
-    public File workspace;
+    public FilePath workspace;
     public Launcher launcher;
     public Run run;
 
-    public ShellExecuter(Run run, Launcher launcher, TaskListener listener, File workspace) {
+    private int outputTailSize = DEFAULT_OUTPUT_TAIL_SIZE;
+    private long commandTimeoutMinutes = DEFAULT_COMMAND_TIMEOUT_MINUTES;
+
+    public ShellExecuter(Run run, Launcher launcher, TaskListener listener, FilePath workspace) {
         this.run = run;
         this.listener = listener;
         this.workspace = workspace;
         this.launcher = launcher;
     }
 
-    public void login(AzureCredentialCache credentialsCache) throws AzureCredentialsValidationException {
+    public int getOutputTailSize() {
+        return outputTailSize;
+    }
+
+    public void setOutputTailSize(int outputTailSize) {
+        this.outputTailSize = outputTailSize;
+    }
+
+    public long getCommandTimeoutMinutes() {
+        return commandTimeoutMinutes;
+    }
+
+    public void setCommandTimeoutMinutes(long commandTimeoutMinutes) {
+        this.commandTimeoutMinutes = commandTimeoutMinutes;
+    }
+
+    public void login(AzureCredentialCache credentialsCache) throws AzureCredentialsValidationException, IOException, InterruptedException {
+        login(credentialsCache, new HashMap<String, String>());
+    }
+
+    public void login(AzureCredentialCache credentialsCache, Map<String, String> envs) throws AzureCredentialsValidationException, IOException, InterruptedException {
         String command = "az login --service-principal -u " + credentialsCache.clientId + " -p " + credentialsCache.clientSecret + " --tenant " + credentialsCache.tenantId;
         try {
-            executeAZ(command, false);
+            executeAZ(command, false, envs);
             command = "az account set -s " + credentialsCache.subscriptionId;
-            executeAZ(command, false);
+            executeAZ(command, false, envs);
         } catch (AzureCloudException e) {
             throw new AzureCredentialsValidationException(e.getMessage());
         }
     }
 
-    public String getVersion() throws AzureCloudException {
+    public String getVersion() throws AzureCloudException, IOException, InterruptedException {
         String command = "az --version";
-        ExitResult result = executeCommand(command, new HashMap<String, String>(), false);
+        ExitResult result = executeCommand(command, new HashMap<String, String>(), false, commandTimeoutMinutes);
         if (result.code == 0) {
             return result.output;
         }
         throw AzureCloudException.create("Azure CLI not found");
     }
 
-    public String executeAZ(String command, Boolean printCommand, Map<String, String> overrideEnvs) throws AzureCloudException {
-        ExitResult result = executeCommand(command, overrideEnvs, printCommand);
+    public String executeAZ(String command, Boolean printCommand, Map<String, String> overrideEnvs, long timeoutMinutes) throws AzureCloudException, IOException, InterruptedException {
+        ExitResult result = executeCommand(command, overrideEnvs, printCommand, timeoutMinutes);
+        if (result.timedOut) {
+            throw AzureCloudException.create(String.format("Command did not complete within %d minutes and was killed%n%s", timeoutMinutes, result.output));
+        }
         if (result.code == 0) {
             return result.output;
         }
         throw AzureCloudException.create(result.output);
     }
 
-    public String executeAZ(String command, Boolean printCommand) throws AzureCloudException {
+    public String executeAZ(String command, Boolean printCommand, Map<String, String> overrideEnvs) throws AzureCloudException, IOException, InterruptedException {
+        return executeAZ(command, printCommand, overrideEnvs, commandTimeoutMinutes);
+    }
+
+    public String executeAZ(String command, Boolean printCommand) throws AzureCloudException, IOException, InterruptedException {
         return executeAZ(command, printCommand, new HashMap<String, String>());
     }
 
     private static class ExitResult {
         public String output;
         public int code;
+        public boolean timedOut;
 
-        ExitResult(String output, int code) {
+        ExitResult(String output, int code, boolean timedOut) {
             this.output = output;
             this.code = code;
+            this.timedOut = timedOut;
         }
     }
 
-    private ExitResult executeCommand(String command, Map<String,String> envs, boolean printCommand) {
+    /**
+     * Runs the command and waits for it. If the waiting thread is interrupted, e.g. because the build was aborted,
+     * or the timeout elapses, the launched process and all its children are killed.
+     */
+    private ExitResult executeCommand(String command, Map<String,String> envs, boolean printCommand, long timeoutMinutes) throws IOException, InterruptedException {
         ProcStarter ps = launcher.launch();
-        int exitCode = -1;
-        String output = null;
-        if (File.pathSeparatorChar == ':') {
+        TailBuffer tail = new TailBuffer(outputTailSize);
+        if (launcher.isUnix()) {
             command = "" + command;
         } else {
             command = "cmd /c " + command;
         }
+        // The process inherits the environment of the node it runs on, only overrides are sent
+        Map<String, String> envVars = new HashMap<>();
+        if(run != null) envVars.putAll(run.getEnvVars());
+        envVars.putAll(envs);
+
+        OutputStream out = new LogOutputStream(printCommand && listener != null ? listener.getLogger() : null, tail);
+        final Proc p = launcher.launch(ps.cmdAsSingleString(command).envs(envVars).pwd(workspace).stdout(out).quiet(!printCommand));
+        final AtomicBoolean timedOut = new AtomicBoolean(false);
+        ScheduledFuture<?> killer = null;
+        if (timeoutMinutes > 0) {
+            killer = Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    timedOut.set(true);
+                    try {
+                        p.kill();
+                    } catch (IOException | InterruptedException e) {
+                        LOGGER.log(Level.WARNING, "Failed to kill timed out process", e);
+                    }
+                }
+            }, timeoutMinutes, TimeUnit.MINUTES);
+        }
         try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            Map<String, String> envVars = new HashMap<>();
-            envVars.putAll(System.getenv());
-            if(run != null) envVars.putAll(run.getEnvVars());
-            envVars.putAll(envs);
-            Proc p = launcher.launch(ps.cmdAsSingleString(command).envs(envVars).pwd(workspace).stdout(baos).quiet(!printCommand));
-            String line = "";
-            exitCode = p.join();
-            output = new String(baos.toByteArray(), Constants.CHARSET_UTF_8);
-            if (listener != null && printCommand) listener.getLogger().println(output);
-        } catch (IOException e) {
-            e.printStackTrace();
+            int exitCode = p.join();
+            return new ExitResult(tail.toString(), exitCode, timedOut.get());
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            p.kill();
+            throw e;
+        } finally {
+            if (killer != null) {
+                killer.cancel(false);
+            }
+            out.close();
+        }
+    }
+
+    /**
+     * Copies process output to the build log line by line as it arrives, keeping only its tail in memory.
+     */
+    private static final class LogOutputStream extends LineTransformationOutputStream {
+        private final PrintStream logger;
+        private final TailBuffer tail;
+
+        LogOutputStream(PrintStream logger, TailBuffer tail) {
+            this.logger = logger;
+            this.tail = tail;
         }
 
-        return new ExitResult(output, exitCode);
+        @Override
+        protected void eol(byte[] b, int len) throws IOException {
+            tail.write(b, 0, len);
+            if (logger != null) {
+                logger.write(b, 0, len);
+                logger.flush();
+            }
+        }
     }
 }
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.iotedge.model;
+
+import java.io.IOException;
+
+/**
+ * A REST call that completed with a non-success status code.
+ */
+public class RestException extends IOException {
+
+    private static final long serialVersionUID = -2694185406398273715L;
+
+    public static final int NO_RETRY_AFTER = -1;
+
+    private final int statusCode;
+    private final long retryAfterSeconds;
+    private final String authenticate;
+
+    public RestException(int statusCode, String message, long retryAfterSeconds, String authenticate) {
+        super(message);
+        this.statusCode = statusCode;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.authenticate = authenticate;
+    }
+
+    public RestException(int statusCode, String message, long retryAfterSeconds) {
+        this(statusCode, message, retryAfterSeconds, null);
+    }
+
+    public RestException(int statusCode, String message) {
+        this(statusCode, message, NO_RETRY_AFTER);
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Seconds the server asked to wait before retrying, or {@link #NO_RETRY_AFTER} if it didn't say.
+     */
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    /**
+     * The WWW-Authenticate challenge of the response, or null if there was none.
+     */
+    public String getAuthenticate() {
+        return authenticate;
+    }
+
+    public boolean isNotFound() {
+        return statusCode == 404;
+    }
+
+    public boolean isUnauthorized() {
+        return statusCode == 401 || statusCode == 403;
+    }
+
+    public boolean isThrottled() {
+        return statusCode == 429;
+    }
+}
@@ -6,27 +6,108 @@
 
 package com.microsoft.jenkins.iotedge.util;
 
+import com.cloudbees.plugins.credentials.SystemCredentialsProvider;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.UncheckedExecutionException;
 import com.microsoft.azure.management.Azure;
 import com.microsoft.azure.util.AzureBaseCredentials;
 import com.microsoft.azure.util.AzureCredentialUtil;
 import com.microsoft.jenkins.azurecommons.core.AzureClientFactory;
 import com.microsoft.jenkins.azurecommons.core.credentials.TokenCredentialData;
 import com.microsoft.jenkins.iotedge.AzureIoTEdgePlugin;
+import hudson.Extension;
+import hudson.XmlFile;
 import hudson.model.Item;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 public final class AzureUtils {
 
+    /**
+     * Azure clients keyed by credential id and credential fingerprint. Entries expire a little before the AAD
+     * access token the client was built with, and the least recently used ones are evicted first.
+     */
+    private static final Cache<String, Azure> CLIENT_CACHE = CacheBuilder.newBuilder()
+            .maximumSize(Constants.AZURE_CLIENT_CACHE_MAX_SIZE)
+            .expireAfterWrite(Constants.AZURE_CLIENT_CACHE_TTL_MINUTES, TimeUnit.MINUTES)
+            .recordStats()
+            .build();
+
+    /**
+     * Last cache key seen for each credential id, used to drop clients built from an outdated credential.
+     */
+    private static final ConcurrentMap<String, String> CLIENT_KEYS = new ConcurrentHashMap<>();
+
     public static TokenCredentialData getToken(Item owner, String credentialId) {
+        return TokenCredentialData.deserialize(getCredential(owner, credentialId).serializeToTokenData());
+    }
+
+    public static Azure buildClient(Item owner, String credentialId) {
+        final AzureBaseCredentials credential = getCredential(owner, credentialId);
+        final String tokenData = credential.serializeToTokenData();
+        final String key = credentialId + ":" + fingerprint(tokenData);
+
+        String previousKey = CLIENT_KEYS.put(credentialId, key);
+        if (previousKey != null && !previousKey.equals(key)) {
+            // Credential was updated since the cached client was built
+            CLIENT_CACHE.invalidate(previousKey);
+        }
+
+        try {
+            return CLIENT_CACHE.get(key, new Callable<Azure>() {
+                @Override
+                public Azure call() {
+                    return createClient(TokenCredentialData.deserialize(tokenData));
+                }
+            });
+        } catch (ExecutionException | UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    public static void invalidateClient(String credentialId) {
+        String key = CLIENT_KEYS.remove(credentialId);
+        if (key != null) {
+            CLIENT_CACHE.invalidate(key);
+        }
+    }
+
+    public static void invalidateAllClients() {
+        CLIENT_KEYS.clear();
+        CLIENT_CACHE.invalidateAll();
+    }
+
+    public static CacheStats getClientCacheStats() {
+        return CLIENT_CACHE.stats();
+    }
+
+    private static AzureBaseCredentials getCredential(Item owner, String credentialId) {
         AzureBaseCredentials credential = AzureCredentialUtil.getCredential(owner, credentialId);
         if (credential == null) {
             throw new IllegalStateException(
                     String.format("Can't find credential in scope %s with id: %s", owner, credentialId));
         }
-        return TokenCredentialData.deserialize(credential.serializeToTokenData());
+        return credential;
     }
 
-    public static Azure buildClient(Item owner, String credentialId) {
-        TokenCredentialData token = getToken(owner, credentialId);
+    private static String fingerprint(String tokenData) {
+        return Hashing.sha256().hashString(tokenData, StandardCharsets.UTF_8).toString();
+    }
+
+    private static Azure createClient(TokenCredentialData token) {
         return AzureClientFactory.getClient(token, new AzureClientFactory.Configurer() {
             @Override
             public Azure.Configurable configure(Azure.Configurable configurable) {
@@ -39,6 +120,19 @@ public final class AzureUtils {
         });
     }
 
+    /**
+     * Drops cached clients whenever the system credential store is saved, so removed credentials don't linger.
+     */
+    @Extension
+    public static final class CredentialsSaveListener extends SaveableListener {
+        @Override
+        public void onChange(Saveable o, XmlFile file) {
+            if (o instanceof SystemCredentialsProvider) {
+                invalidateAllClients();
+            }
+        }
+    }
+
     private AzureUtils() {
     }
 }
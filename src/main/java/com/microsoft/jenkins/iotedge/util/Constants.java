@@ -24,6 +24,10 @@ public final class Constants {
 
     public static final LogLevel DEFAULT_AZURE_SDK_LOGGING_LEVEL = LogLevel.NONE;
 
+    // AAD access tokens live for 60 minutes, keep cached clients for a bit less than that
+    public static final long AZURE_CLIENT_CACHE_TTL_MINUTES = 50;
+    public static final long AZURE_CLIENT_CACHE_MAX_SIZE = 200;
+
     // the first option for select element. Keep the same value as jenkins pre-defined default empty value.
     public static final String EMPTY_SELECTION = "- none -";
 
@@ -32,6 +36,14 @@ public final class Constants {
     public static final String DOCKER_REGISTRY_TYPE_ACR = "acr";
     public static final String DOCKER_REGISTRY_TYPE_COMMON = "common";
 
+    public static final String DEPLOY_MODE_REST = "rest";
+    public static final String DEPLOY_MODE_CLI = "cli";
+
+    // label marking the versions created by a versioned deploy with their deployment ID
+    public static final String DEPLOYMENT_LABEL_ID = "jenkins-deployment-id";
+    public static final String DEPLOYMENT_LABEL_CONTENT_HASH = "jenkins-content-hash";
+    public static final int DEPLOYMENT_ID_MAX_LENGTH = 128;
+
     public static final String EDGE_MODULES_FOLDERNAME = "modules";
     public static final String EDGE_DEPLOYMENT_MANIFEST_FILENAME = "deployment.template.json";
     public static final String EDGE_DEPLOYMENT_CONFIG_FOLDERNAME = "config";
@@ -55,13 +67,30 @@ public final class Constants {
         iotedgedevEnvMap.put("ACTIVE_DOCKER_PLATFORMS", "amd64");
     }
 
+    public static final String AZURE_CONFIG_DIR_ENV = "AZURE_CONFIG_DIR";
+
     public static final String IOT_HUB_URL = "%s.azure-devices.net";
 
-    public static final String REST_GET_TOKEN_URL = "https://login.microsoftonline.com/%s/oauth2/token";
-    public static final String REST_GET_TOKEN_BODY = "resource=https%%3A%%2F%%2Fmanagement.core.windows.net%%2F&client_id=%s&grant_type=client_credentials&client_secret=%s";
-    public static final String REST_GET_IOT_KEY_URL = "https://management.azure.com/subscriptions/%s/resourceGroups/%s/providers/Microsoft.Devices/IotHubs/%s/listkeys?api-version=2018-04-01";
+    // Endpoints of the global Azure cloud, for credentials that leave those of their environment empty
+    public static final String DEFAULT_AUTHENTICATION_ENDPOINT = "https://login.microsoftonline.com/";
+    public static final String DEFAULT_RESOURCE_MANAGER_ENDPOINT = "https://management.azure.com/";
+    public static final String DEFAULT_SERVICE_MANAGEMENT_URL = "https://management.core.windows.net/";
+
+    // The token and ARM URLs start with the authentication and Resource Manager endpoint of the credential
+    public static final String REST_GET_TOKEN_URL = "%s%s/oauth2/token";
+    public static final String REST_GET_TOKEN_BODY = "resource=%s&client_id=%s&grant_type=client_credentials&client_secret=%s";
+    public static final String REST_GET_IOT_KEY_URL = "%ssubscriptions/%s/resourceGroups/%s/providers/Microsoft.Devices/IotHubs/%s/listkeys?api-version=2018-04-01";
+    public static final String REST_LIST_RESOURCE_GROUP_RESOURCES_URL = "%ssubscriptions/%s/resourceGroups/%s/resources?$filter=%s&api-version=2017-05-10";
+    public static final String REST_LIST_SUBSCRIPTION_RESOURCES_URL = "%ssubscriptions/%s/resources?$filter=%s&api-version=2017-05-10";
     public static final String REST_GET_DEVICES_URL = "https://%s.azure-devices.net/devices/query?api-version=2018-06-30";
-    public static final String REST_GET_DEVICES_BODY = "{\"query\": \"SELECT * FROM DEVICES where capabilities.iotEdge=true\"}";
+    public static final String REST_GET_DEVICES_BODY = "{\"query\": \"SELECT deviceId FROM devices WHERE capabilities.iotEdge = true\"}";
+    public static final String REST_CONFIGURATION_URL = "https://%s.azure-devices.net/configurations/%s?api-version=2018-06-30";
+    public static final String REST_LIST_CONFIGURATIONS_URL = "https://%s.azure-devices.net/configurations?top=%d&api-version=2018-06-30";
+    public static final int REST_LIST_CONFIGURATIONS_TOP = 100;
+    public static final String REST_GET_RUNTIME_STATUS_BODY = "{\"query\": \"SELECT deviceId, properties.reported.systemModules, properties.reported.modules FROM devices.modules WHERE moduleId = '$edgeAgent' AND configurations.[[%s]].status = 'Applied'\"}";
+    public static final String REST_HEADER_CONTINUATION = "x-ms-continuation";
+    public static final String REST_HEADER_MAX_ITEM_COUNT = "x-ms-max-item-count";
+    public static final int REST_QUERY_PAGE_SIZE = 1000;
 
     /**
      * AI constants.
@@ -80,7 +109,11 @@ public final class Constants {
     public static final String TELEMETRY_VALUE_TASK_TYPE_PUSH = "Push";
     public static final String TELEMETRY_VALUE_TASK_TYPE_GEN_CONFIG = "GenConfig";
     public static final String TELEMETRY_VALUE_TASK_TYPE_DEPLOY = "Deploy";
+    public static final String TELEMETRY_VALUE_TASK_TYPE_DEPLOY_SKIPPED = "DeploySkipped";
 
     public static final int SAS_TOKEN_MINUTES = 5;
+    // refresh cached AAD tokens and hub keys this long before they expire
+    public static final long TOKEN_REFRESH_MARGIN_MINUTES = 5;
+    public static final long IOTHUB_KEY_CACHE_TTL_MINUTES = 60;
     public static final String CHARSET_UTF_8 = "UTF-8";
 }
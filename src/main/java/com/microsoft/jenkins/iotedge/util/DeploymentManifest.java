@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.iotedge.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.io.CountingInputStream;
+import com.microsoft.jenkins.iotedge.model.AzureCloudException;
+import hudson.FilePath;
+import hudson.remoting.VirtualChannel;
+import jenkins.MasterToSlaveFileCallable;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Checks a deployment manifest in one streaming pass, without reading it into a tree: the manifest must have
+ * modulesContent with $edgeAgent and $edgeHub, at the root or under content. The same pass computes the
+ * {@link JsonHash} of the content and counts the bytes of the manifest, and can cut the text of the content out of
+ * the manifest for the deployment to send as is.
+ */
+public final class DeploymentManifest {
+
+    private static final String CONTENT = "content";
+    private static final String MODULES_CONTENT = "modulesContent";
+    private static final String EDGE_AGENT = "$edgeAgent";
+    private static final String EDGE_HUB = "$edgeHub";
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+
+    /**
+     * What a scan found out about a manifest.
+     */
+    public static final class Summary implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String contentHash;
+        private final long size;
+        private final int moduleCount;
+        private final String content;
+
+        Summary(String contentHash, long size, int moduleCount, String content) {
+            this.contentHash = contentHash;
+            this.size = size;
+            this.moduleCount = moduleCount;
+            this.content = content;
+        }
+
+        /**
+         * The {@link JsonHash} of the deployment content.
+         */
+        public String getContentHash() {
+            return contentHash;
+        }
+
+        /**
+         * Size of the manifest in bytes.
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * Number of entries in modulesContent, $edgeAgent and $edgeHub included.
+         */
+        public int getModuleCount() {
+            return moduleCount;
+        }
+
+        /**
+         * The deployment content as it is written in the manifest, when it was asked for.
+         */
+        public String getContent() {
+            return content;
+        }
+    }
+
+    private static final class Content {
+        private byte[] digest;
+        private Set<String> modules;
+        private Content nested;
+        // Byte offsets of the object in the manifest
+        private long start;
+        private long end;
+    }
+
+    /**
+     * Scans a manifest. The stream is read to the end but not closed.
+     *
+     * @throws AzureCloudException if the manifest isn't valid JSON or lacks modulesContent, $edgeAgent or $edgeHub
+     */
+    public static Summary scan(InputStream stream) throws AzureCloudException, IOException {
+        return scan(stream, null);
+    }
+
+    /**
+     * Scans a manifest, and cuts the text of its content out of {@code source} when given, the bytes the stream
+     * reads.
+     */
+    private static Summary scan(InputStream stream, byte[] source) throws AzureCloudException, IOException {
+        CountingInputStream counting = new CountingInputStream(stream);
+        JsonParser parser = FACTORY.createParser(counting);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw AzureCloudException.create("Deployment manifest must be a JSON object");
+            }
+            Content root = readContent(parser, true);
+            if (parser.nextToken() != null) {
+                throw AzureCloudException.create("Deployment manifest has content after the JSON object");
+            }
+            Content content = root.nested != null ? root.nested : root;
+            if (content.modules == null) {
+                throw AzureCloudException.create("Deployment manifest has no " + MODULES_CONTENT);
+            }
+            for (String required : new String[]{EDGE_AGENT, EDGE_HUB}) {
+                if (!content.modules.contains(required)) {
+                    throw AzureCloudException.create(String.format("Deployment manifest has no %s in %s",
+                            required, MODULES_CONTENT));
+                }
+            }
+            String text = source == null ? null
+                    : new String(source, (int) content.start, (int) (content.end - content.start), StandardCharsets.UTF_8);
+            return new Summary(JsonHash.toHex(content.digest), counting.getCount(), content.modules.size(), text);
+        } catch (JsonProcessingException e) {
+            throw AzureCloudException.create("Deployment manifest is not valid JSON: " + e.getOriginalMessage());
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Scans a manifest file on the node it is on, so that only the summary is sent back.
+     *
+     * @param withContent whether to send back the deployment content too
+     * @throws AzureCloudException if the file doesn't exist or isn't a valid manifest
+     */
+    public static Summary scan(FilePath file, boolean withContent)
+            throws AzureCloudException, IOException, InterruptedException {
+        return Util.act(file, new Scan(withContent));
+    }
+
+    private static final class Scan extends MasterToSlaveFileCallable<Summary> {
+        private static final long serialVersionUID = 1L;
+
+        private final boolean withContent;
+
+        Scan(boolean withContent) {
+            this.withContent = withContent;
+        }
+
+        @Override
+        public Summary invoke(File file, VirtualChannel channel) throws IOException, InterruptedException {
+            try {
+                if (!file.isFile()) {
+                    throw AzureCloudException.create("Deployment manifest not found: " + file.getPath());
+                }
+                if (withContent) {
+                    // The content is cut out of the bytes the scan reads, in the same pass
+                    byte[] source = Files.readAllBytes(file.toPath());
+                    return scan(new ByteArrayInputStream(source), source);
+                }
+                InputStream stream = new FileInputStream(file);
+                try {
+                    return scan(stream);
+                } finally {
+                    stream.close();
+                }
+            } catch (AzureCloudException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Reads the fields of an object the parser has just entered, digesting it and collecting the names in its
+     * modulesContent. When {@code allowNested}, a content object is read the same way.
+     */
+    private static Content readContent(JsonParser parser, boolean allowNested) throws IOException {
+        Content content = new Content();
+        content.start = parser.getTokenLocation().getByteOffset();
+        List<Map.Entry<String, byte[]>> entries = new ArrayList<>();
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            byte[] digest;
+            if (allowNested && CONTENT.equals(name) && value == JsonToken.START_OBJECT) {
+                content.nested = readContent(parser, false);
+                digest = content.nested.digest;
+            } else if (MODULES_CONTENT.equals(name) && value == JsonToken.START_OBJECT) {
+                content.modules = new HashSet<>();
+                digest = JsonHash.digest(parser, content.modules);
+            } else {
+                digest = JsonHash.digest(parser, null);
+            }
+            entries.add(new AbstractMap.SimpleEntry<>(name, digest));
+        }
+        content.digest = JsonHash.digestObject(entries);
+        content.end = parser.getCurrentLocation().getByteOffset();
+        return content;
+    }
+
+    private DeploymentManifest() {
+    }
+}
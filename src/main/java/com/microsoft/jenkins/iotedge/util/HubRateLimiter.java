@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.iotedge.util;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Token bucket limiting the calls of one operation class to one IoT Hub, shared by all builds of the controller,
+ * so that concurrent deployments stay under the hub quotas instead of failing with 429. Callers reserve the next
+ * free slot under a lock and then wait for it outside the lock, which serves them in the order they asked whatever
+ * build they belong to. A throttled response pushes the next free slot back by its Retry-After, or by a jittered
+ * exponential backoff when there is none, for every caller of the bucket. Callers that must not block, such as
+ * the rollout polls, take a token only if one is free and otherwise schedule themselves for when it will be.
+ */
+public final class HubRateLimiter {
+
+    private static final Logger LOGGER = Logger.getLogger(HubRateLimiter.class.getName());
+
+    /**
+     * Operation classes sharing a quota on the hub.
+     */
+    public enum Operation {
+        /**
+         * Create, get, list and delete of configurations.
+         */
+        CONFIGURATION("configurationsPerMinute"),
+        /**
+         * Device and module twin queries.
+         */
+        QUERY("queriesPerMinute");
+
+        private final int perMinute;
+
+        Operation(String property) {
+            // The quotas of one S1 unit
+            this.perMinute = Math.max(1, Integer.getInteger(HubRateLimiter.class.getName() + "." + property, 20));
+        }
+    }
+
+    static final int BURST = Math.max(1, Integer.getInteger(HubRateLimiter.class.getName() + ".burst", 5));
+    static final long BASE_BACKOFF_MILLIS = 1000;
+    static final long MAX_BACKOFF_MILLIS = 60000;
+    // Waits longer than this are logged
+    private static final long SLOW_WAIT_MILLIS = 10000;
+
+    private static final ConcurrentMap<String, HubRateLimiter> LIMITERS = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final long intervalMillis;
+    private long nextFreeMillis;
+
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private final AtomicLong acquired = new AtomicLong();
+    private final AtomicLong delayed = new AtomicLong();
+    private final AtomicLong deferred = new AtomicLong();
+    private final AtomicLong totalWaitMillis = new AtomicLong();
+    private final AtomicLong maxWaitMillis = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+
+    HubRateLimiter(String name, int perMinute) {
+        this.name = name;
+        this.intervalMillis = TimeUnit.MINUTES.toMillis(1) / perMinute;
+    }
+
+    /**
+     * The limiter of an operation class on a hub.
+     */
+    public static HubRateLimiter get(String iothubName, Operation operation) {
+        String key = key(iothubName, operation);
+        HubRateLimiter limiter = LIMITERS.get(key);
+        if (limiter == null) {
+            HubRateLimiter created = new HubRateLimiter(key, operation.perMinute);
+            limiter = LIMITERS.putIfAbsent(key, created);
+            if (limiter == null) {
+                limiter = created;
+            }
+        }
+        return limiter;
+    }
+
+    /**
+     * Statistics of the limiters of a hub since the controller started, one line per operation class used.
+     */
+    public static List<String> describe(String iothubName) {
+        List<String> lines = new ArrayList<>();
+        for (Operation operation : Operation.values()) {
+            HubRateLimiter limiter = LIMITERS.get(key(iothubName, operation));
+            if (limiter != null) {
+                lines.add(limiter.toString());
+            }
+        }
+        return lines;
+    }
+
+    private static String key(String iothubName, Operation operation) {
+        return iothubName + " " + operation.name().toLowerCase();
+    }
+
+    /**
+     * Reserves the next free slot of the bucket.
+     *
+     * @return milliseconds to wait before the slot, 0 if a token was available
+     */
+    synchronized long reserve(long now) {
+        // Tokens saved up while idle, up to the burst
+        long earliest = now - (BURST - 1) * intervalMillis;
+        if (nextFreeMillis < earliest) {
+            nextFreeMillis = earliest;
+        }
+        long slot = nextFreeMillis;
+        nextFreeMillis = slot + intervalMillis;
+        return Math.max(0, slot - now);
+    }
+
+    /**
+     * Takes a token if one is free now, without reserving a later slot otherwise.
+     *
+     * @return 0 if a token was taken, otherwise milliseconds until one is free
+     */
+    synchronized long tryReserve(long now) {
+        long earliest = now - (BURST - 1) * intervalMillis;
+        if (nextFreeMillis < earliest) {
+            nextFreeMillis = earliest;
+        }
+        if (nextFreeMillis > now) {
+            return nextFreeMillis - now;
+        }
+        nextFreeMillis += intervalMillis;
+        return 0;
+    }
+
+    /**
+     * Lets the caller call the hub if it may do so now, without blocking.
+     *
+     * @return 0 if the caller may call the hub, otherwise milliseconds to wait before trying again
+     */
+    public long tryAcquire() {
+        long wait = tryReserve(System.currentTimeMillis());
+        if (wait == 0) {
+            acquired.incrementAndGet();
+        } else {
+            deferred.incrementAndGet();
+        }
+        return wait;
+    }
+
+    /**
+     * Blocks until the caller may call the hub.
+     */
+    public void acquire() throws InterruptedIOException {
+        long wait = reserve(System.currentTimeMillis());
+        acquired.incrementAndGet();
+        if (wait == 0) {
+            return;
+        }
+        int depth = queueDepth.incrementAndGet();
+        updateMax(maxQueueDepth, depth);
+        try {
+            if (wait >= SLOW_WAIT_MILLIS) {
+                LOGGER.log(Level.INFO, "Waiting {0} ms for IoT Hub rate limit {1}, {2} request(s) queued",
+                        new Object[]{wait, name, depth});
+            }
+            TimeUnit.MILLISECONDS.sleep(wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for IoT Hub rate limit " + name);
+        } finally {
+            queueDepth.decrementAndGet();
+        }
+        delayed.incrementAndGet();
+        totalWaitMillis.addAndGet(wait);
+        updateMax(maxWaitMillis, wait);
+    }
+
+    /**
+     * Records a throttled response: nobody calls the hub again before the Retry-After it asked for, or before the
+     * backoff of the attempt when it didn't ask.
+     *
+     * @param retryAfterSeconds the Retry-After of the response, negative if there was none
+     * @param attempt           how many times the throttled call was made
+     */
+    public void throttled(long retryAfterSeconds, int attempt) {
+        throttled.incrementAndGet();
+        long pause = retryAfterSeconds > 0 ? TimeUnit.SECONDS.toMillis(retryAfterSeconds) : backoffMillis(attempt);
+        synchronized (this) {
+            nextFreeMillis = Math.max(nextFreeMillis, System.currentTimeMillis() + pause);
+        }
+        LOGGER.log(Level.FINE, "IoT Hub {0} throttled, pausing {1} ms", new Object[]{name, pause});
+    }
+
+    /**
+     * Exponential backoff with jitter: a random delay between half and all of the doubled base delay, so that the
+     * builds throttled together don't retry together.
+     */
+    public static long backoffMillis(int attempt) {
+        long cap = Math.min(BASE_BACKOFF_MILLIS << Math.min(Math.max(attempt - 1, 0), 16), MAX_BACKOFF_MILLIS);
+        return cap / 2 + ThreadLocalRandom.current().nextLong(cap / 2 + 1);
+    }
+
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    public long getTotalWaitMillis() {
+        return totalWaitMillis.get();
+    }
+
+    private static void updateMax(AtomicInteger max, int value) {
+        int current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+            // retry
+        }
+    }
+
+    @Override
+    public String toString() {
+        long delayedCount = delayed.get();
+        return String.format("%s: %d request(s), %d delayed, %d deferred, %d throttled, queue depth %d (max %d), "
+                        + "wait avg %d ms (max %d ms)",
+                name, acquired.get(), delayedCount, deferred.get(), throttled.get(), queueDepth.get(), maxQueueDepth.get(),
+                delayedCount == 0 ? 0 : totalWaitMillis.get() / delayedCount, maxWaitMillis.get());
+    }
+}
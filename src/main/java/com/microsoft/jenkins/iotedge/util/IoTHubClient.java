@@ -0,0 +1,554 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.iotedge.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.azure.util.AzureCredentials;
+import com.microsoft.jenkins.iotedge.model.RestException;
+
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Minimal client for the IoT Hub service REST API.
+ */
+public class IoTHubClient {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+    private static final ObjectMapper MAPPER = new ObjectMapper(JSON_FACTORY);
+    private static final int THROTTLE_RETRIES =
+            Integer.getInteger(IoTHubClient.class.getName() + ".throttleRetries", 5);
+
+    private final String iothubName;
+    private final String sasToken;
+    private final boolean waiting;
+
+    public IoTHubClient(String iothubName, String sasToken) {
+        this(iothubName, sasToken, true);
+    }
+
+    private IoTHubClient(String iothubName, String sasToken, boolean waiting) {
+        this.iothubName = iothubName;
+        this.sasToken = sasToken;
+        this.waiting = waiting;
+    }
+
+    /**
+     * Creates a client for the hub, signed with its iothubowner key.
+     *
+     * @throws RestException if the key of the hub can't be listed or the hub has no iothubowner policy
+     */
+    public static IoTHubClient create(AzureCredentials.ServicePrincipal servicePrincipal, String resourceGroup,
+                                      String iothubName) throws IOException {
+        String key = TokenCache.getIothubOwnerKey(servicePrincipal, resourceGroup, iothubName);
+        if (key == null) {
+            throw new RestException(404, String.format("IoT Hub %s has no %s shared access policy",
+                    iothubName, TokenCache.getIothubOwnerKeyName()));
+        }
+        return new IoTHubClient(iothubName,
+                Util.getSharedAccessToken(String.format(Constants.IOT_HUB_URL, Util.encodeURIComponent(iothubName)),
+                        key,
+                        TokenCache.getIothubOwnerKeyName(),
+                        Constants.SAS_TOKEN_MINUTES));
+    }
+
+    /**
+     * A client of the same hub that never waits for the rate limit: a call over the limit, or throttled by the hub,
+     * fails at once with a 429 {@link RestException} whose Retry-After says when to try again, so that callers
+     * polling on a schedule can fold the wait into their next poll instead of holding a thread.
+     */
+    public IoTHubClient withoutWaiting() {
+        return new IoTHubClient(iothubName, sasToken, false);
+    }
+
+    public String getIothubName() {
+        return iothubName;
+    }
+
+    /**
+     * Returns the configuration (deployment) with the given id, or null if it doesn't exist.
+     */
+    public JsonNode getConfiguration(String configurationId) throws IOException {
+        try {
+            return execute(HubRateLimiter.Operation.CONFIGURATION, newConfigurationRequest(configurationId).get().build(),
+                    JSON_NODE_HANDLER);
+        } catch (RestException e) {
+            if (e.isNotFound()) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Creates a configuration applying the given content to the devices matching the target condition.
+     *
+     * @param content the content as JSON text, written to the request as is
+     * @return the created configuration as returned by the hub
+     */
+    public JsonNode createConfiguration(String configurationId, String content, String targetCondition,
+                                        int priority, Map<String, String> labels) throws IOException {
+        StringWriter body = new StringWriter();
+        JsonGenerator generator = JSON_FACTORY.createGenerator(body);
+        try {
+            generator.writeStartObject();
+            generator.writeStringField("id", configurationId);
+            generator.writeFieldName("content");
+            generator.writeRawValue(content);
+            generator.writeStringField("targetCondition", targetCondition);
+            generator.writeNumberField("priority", priority);
+            generator.writeObjectFieldStart("labels");
+            for (Map.Entry<String, String> label : labels.entrySet()) {
+                generator.writeStringField(label.getKey(), label.getValue());
+            }
+            generator.writeEndObject();
+            generator.writeEndObject();
+        } finally {
+            generator.close();
+        }
+        return execute(HubRateLimiter.Operation.CONFIGURATION, newConfigurationRequest(configurationId)
+                        .put(RestClient.jsonBody(body.toString()))
+                        .build(),
+                JSON_NODE_HANDLER);
+    }
+
+    /**
+     * Deletes the configuration with the given id.
+     *
+     * @return false if there was no such configuration
+     */
+    public boolean deleteConfiguration(String configurationId) throws IOException {
+        try {
+            execute(HubRateLimiter.Operation.CONFIGURATION, newConfigurationRequest(configurationId)
+                    .header("If-Match", "*")
+                    .delete()
+                    .build(), DISCARD_HANDLER);
+            return true;
+        } catch (RestException e) {
+            if (e.isNotFound()) {
+                return false;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Id, target condition, priority, labels and creation time of a configuration, without its content.
+     */
+    public static final class ConfigurationSummary {
+        private final String id;
+        private final String targetCondition;
+        private final int priority;
+        private final Map<String, String> labels;
+        private final String createdTimeUtc;
+
+        ConfigurationSummary(String id, String targetCondition, int priority, Map<String, String> labels,
+                             String createdTimeUtc) {
+            this.id = id;
+            this.targetCondition = targetCondition;
+            this.priority = priority;
+            this.labels = labels;
+            this.createdTimeUtc = createdTimeUtc;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getTargetCondition() {
+            return targetCondition;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public Map<String, String> getLabels() {
+            return labels;
+        }
+
+        public String getCreatedTimeUtc() {
+            return createdTimeUtc;
+        }
+    }
+
+    /**
+     * Rollout counters the hub computes for a configuration, and the ETag they were read with.
+     */
+    public static final class ConfigurationMetrics implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String etag;
+        private final long targeted;
+        private final long applied;
+        private final long reportedSuccessful;
+        private final long reportedFailed;
+
+        public ConfigurationMetrics(String etag, long targeted, long applied, long reportedSuccessful, long reportedFailed) {
+            this.etag = etag;
+            this.targeted = targeted;
+            this.applied = applied;
+            this.reportedSuccessful = reportedSuccessful;
+            this.reportedFailed = reportedFailed;
+        }
+
+        public String getEtag() {
+            return etag;
+        }
+
+        public long getTargeted() {
+            return targeted;
+        }
+
+        public long getApplied() {
+            return applied;
+        }
+
+        public long getReportedSuccessful() {
+            return reportedSuccessful;
+        }
+
+        public long getReportedFailed() {
+            return reportedFailed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d targeted, %d applied, %d reporting success, %d reporting failure",
+                    targeted, applied, reportedSuccessful, reportedFailed);
+        }
+    }
+
+    /**
+     * Reads the system metrics of a configuration, skipping its content. The request is conditional on the ETag
+     * of the previous read, if any.
+     *
+     * @return the metrics, or null if the configuration hasn't changed since the ETag
+     * @throws RestException if the configuration doesn't exist
+     */
+    public ConfigurationMetrics getConfigurationMetrics(String configurationId, String etag) throws IOException {
+        Request.Builder request = newConfigurationRequest(configurationId).get();
+        if (etag != null) {
+            request.header("If-None-Match", etag);
+        }
+        try {
+            return execute(HubRateLimiter.Operation.CONFIGURATION, request.build(), new RestClient.ResponseHandler<ConfigurationMetrics>() {
+                @Override
+                public ConfigurationMetrics handle(Response response, InputStream body) throws IOException {
+                    return readConfigurationMetrics(body, response.header("ETag"));
+                }
+            });
+        } catch (RestException e) {
+            if (e.getStatusCode() == 304) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    static ConfigurationMetrics readConfigurationMetrics(InputStream is, String etag) throws IOException {
+        Map<String, Long> results = new HashMap<>();
+        JsonParser parser = JSON_FACTORY.createParser(is);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Unexpected configuration response, object expected");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if ("etag".equals(name) && value == JsonToken.VALUE_STRING && etag == null) {
+                    etag = parser.getText();
+                } else if ("systemMetrics".equals(name) && value == JsonToken.START_OBJECT) {
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String metricsField = parser.getCurrentName();
+                        if (parser.nextToken() == JsonToken.START_OBJECT && "results".equals(metricsField)) {
+                            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                                String metric = parser.getCurrentName();
+                                if (parser.nextToken() == JsonToken.VALUE_NUMBER_INT) {
+                                    results.put(metric, parser.getLongValue());
+                                } else {
+                                    parser.skipChildren();
+                                }
+                            }
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } finally {
+            parser.close();
+        }
+        return new ConfigurationMetrics(etag, metric(results, "targetedCount"), metric(results, "appliedCount"),
+                metric(results, "reportedSuccessfulCount"), metric(results, "reportedFailedCount"));
+    }
+
+    private static long metric(Map<String, Long> results, String name) {
+        Long value = results.get(name);
+        return value == null ? 0 : value;
+    }
+
+    /**
+     * Counts the runtime status of the modules on the devices that applied a configuration, as reported by their
+     * $edgeAgent. Only the reported module sections of the agent twins are queried, page by page, and parsed as
+     * a stream.
+     *
+     * @return the number of devices per module and runtime status
+     */
+    public Map<String, Map<String, Integer>> getModuleRuntimeStatus(String configurationId) throws IOException {
+        final Map<String, Map<String, Integer>> statuses = new TreeMap<>();
+        String query = String.format(Constants.REST_GET_RUNTIME_STATUS_BODY, configurationId);
+        String continuation = null;
+        do {
+            Request.Builder request = RestClient.newRequest(String.format(Constants.REST_GET_DEVICES_URL, Util.encodeURIComponent(iothubName)))
+                    .header("Authorization", sasToken)
+                    .header(Constants.REST_HEADER_MAX_ITEM_COUNT, String.valueOf(Constants.REST_QUERY_PAGE_SIZE))
+                    .post(RestClient.jsonBody(query));
+            if (continuation != null) {
+                request.header(Constants.REST_HEADER_CONTINUATION, continuation);
+            }
+            continuation = execute(HubRateLimiter.Operation.QUERY, request.build(), new RestClient.ResponseHandler<String>() {
+                @Override
+                public String handle(Response response, InputStream body) throws IOException {
+                    readRuntimeStatus(body, statuses);
+                    return response.header(Constants.REST_HEADER_CONTINUATION);
+                }
+            });
+        } while (continuation != null && !continuation.isEmpty());
+        return statuses;
+    }
+
+    static void readRuntimeStatus(InputStream is, Map<String, Map<String, Integer>> statuses) throws IOException {
+        JsonParser parser = JSON_FACTORY.createParser(is);
+        try {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("Unexpected query response, array expected");
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    if (parser.nextToken() != JsonToken.START_OBJECT) {
+                        parser.skipChildren();
+                        continue;
+                    }
+                    // systemModules or modules, keyed by module name
+                    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                        String module = parser.getCurrentName();
+                        if (parser.nextToken() != JsonToken.START_OBJECT) {
+                            parser.skipChildren();
+                            continue;
+                        }
+                        String status = "unknown";
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            String name = parser.getCurrentName();
+                            if (parser.nextToken() == JsonToken.VALUE_STRING && "runtimeStatus".equals(name)) {
+                                status = parser.getText();
+                            } else {
+                                parser.skipChildren();
+                            }
+                        }
+                        Map<String, Integer> counts = statuses.get(module);
+                        if (counts == null) {
+                            counts = new TreeMap<>();
+                            statuses.put(module, counts);
+                        }
+                        Integer count = counts.get(status);
+                        counts.put(status, count == null ? 1 : count + 1);
+                    }
+                }
+            }
+        } finally {
+            parser.close();
+        }
+    }
+
+    /**
+     * Lists the configurations of the hub, following continuation tokens page by page. Their content is skipped
+     * while parsing, only id, target condition, priority, labels and creation time are kept.
+     */
+    public List<ConfigurationSummary> listConfigurations() throws IOException {
+        final List<ConfigurationSummary> summaries = new ArrayList<>();
+        String continuation = null;
+        do {
+            Request.Builder request = RestClient.newRequest(String.format(Constants.REST_LIST_CONFIGURATIONS_URL,
+                    Util.encodeURIComponent(iothubName), Constants.REST_LIST_CONFIGURATIONS_TOP))
+                    .header("Authorization", sasToken)
+                    .get();
+            if (continuation != null) {
+                request.header(Constants.REST_HEADER_CONTINUATION, continuation);
+            }
+            continuation = execute(HubRateLimiter.Operation.CONFIGURATION, request.build(), new RestClient.ResponseHandler<String>() {
+                @Override
+                public String handle(Response response, InputStream body) throws IOException {
+                    readConfigurationSummaries(body, summaries);
+                    return response.header(Constants.REST_HEADER_CONTINUATION);
+                }
+            });
+        } while (continuation != null && !continuation.isEmpty());
+        return summaries;
+    }
+
+    private static void readConfigurationSummaries(InputStream is, List<ConfigurationSummary> summaries) throws IOException {
+        JsonParser parser = JSON_FACTORY.createParser(is);
+        try {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("Unexpected configurations response, array expected");
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                String id = null;
+                String targetCondition = null;
+                int priority = 0;
+                Map<String, String> labels = new HashMap<>();
+                String createdTimeUtc = null;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    JsonToken value = parser.nextToken();
+                    if ("id".equals(name)) {
+                        id = parser.getText();
+                    } else if ("targetCondition".equals(name) && value == JsonToken.VALUE_STRING) {
+                        targetCondition = parser.getText();
+                    } else if ("priority".equals(name) && value == JsonToken.VALUE_NUMBER_INT) {
+                        priority = parser.getIntValue();
+                    } else if ("createdTimeUtc".equals(name) && value == JsonToken.VALUE_STRING) {
+                        createdTimeUtc = parser.getText();
+                    } else if ("labels".equals(name) && value == JsonToken.START_OBJECT) {
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            String labelName = parser.getCurrentName();
+                            parser.nextToken();
+                            labels.put(labelName, parser.getText());
+                        }
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                summaries.add(new ConfigurationSummary(id, targetCondition, priority, labels, createdTimeUtc));
+            }
+        } finally {
+            parser.close();
+        }
+    }
+
+    private Request.Builder newConfigurationRequest(String configurationId) {
+        return RestClient.newRequest(String.format(Constants.REST_CONFIGURATION_URL,
+                Util.encodeURIComponent(iothubName), Util.encodeURIComponent(configurationId)))
+                .header("Authorization", sasToken);
+    }
+
+    /**
+     * Executes a request within the rate limit of its operation class on the hub, retrying it when the hub
+     * throttles it anyway, e.g. because other clients share the quota. A client {@link #withoutWaiting() without
+     * waiting} neither waits nor retries.
+     */
+    private <T> T execute(HubRateLimiter.Operation operation, Request request, RestClient.ResponseHandler<T> handler)
+            throws IOException {
+        HubRateLimiter limiter = HubRateLimiter.get(iothubName, operation);
+        for (int attempt = 1; ; attempt++) {
+            if (waiting) {
+                limiter.acquire();
+            } else {
+                long wait = limiter.tryAcquire();
+                if (wait > 0) {
+                    throw new RestException(429, "Rate limit of IoT Hub " + iothubName + " reached",
+                            TimeUnit.MILLISECONDS.toSeconds(wait + 999));
+                }
+            }
+            try {
+                return RestClient.execute(request, handler);
+            } catch (RestException e) {
+                if (!e.isThrottled()) {
+                    throw e;
+                }
+                limiter.throttled(e.getRetryAfterSeconds(), attempt);
+                if (!waiting || attempt > THROTTLE_RETRIES) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private static final RestClient.ResponseHandler<Void> DISCARD_HANDLER = new RestClient.ResponseHandler<Void>() {
+        @Override
+        public Void handle(Response response, InputStream body) {
+            return null;
+        }
+    };
+
+    private static final RestClient.ResponseHandler<JsonNode> JSON_NODE_HANDLER = new RestClient.ResponseHandler<JsonNode>() {
+        @Override
+        public JsonNode handle(Response response, InputStream body) throws IOException {
+            return MAPPER.readTree(body);
+        }
+    };
+
+    /**
+     * Lists the ids of all IoT Edge devices of the hub, following continuation tokens page by page. Only the
+     * projected deviceId is requested and the response is parsed as a stream, so full twins are never loaded.
+     */
+    public List<String> listEdgeDeviceIds() throws IOException {
+        final List<String> deviceIds = new ArrayList<>();
+        String continuation = null;
+        do {
+            Request.Builder request = RestClient.newRequest(String.format(Constants.REST_GET_DEVICES_URL, Util.encodeURIComponent(iothubName)))
+                    .header("Authorization", sasToken)
+                    .header(Constants.REST_HEADER_MAX_ITEM_COUNT, String.valueOf(Constants.REST_QUERY_PAGE_SIZE))
+                    .post(RestClient.jsonBody(Constants.REST_GET_DEVICES_BODY));
+            if (continuation != null) {
+                request.header(Constants.REST_HEADER_CONTINUATION, continuation);
+            }
+            continuation = execute(HubRateLimiter.Operation.QUERY, request.build(), new RestClient.ResponseHandler<String>() {
+                @Override
+                public String handle(Response response, InputStream body) throws IOException {
+                    readStringField(body, "deviceId", deviceIds);
+                    return response.header(Constants.REST_HEADER_CONTINUATION);
+                }
+            });
+        } while (continuation != null && !continuation.isEmpty());
+        return deviceIds;
+    }
+
+    /**
+     * Reads a JSON array of objects and collects the given top level string field of each one.
+     */
+    static void readStringField(InputStream is, String fieldName, List<String> values) throws IOException {
+        JsonParser parser = JSON_FACTORY.createParser(is);
+        try {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("Unexpected query response, array expected");
+            }
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    JsonToken value = parser.nextToken();
+                    if (fieldName.equals(name) && value == JsonToken.VALUE_STRING) {
+                        values.add(parser.getText());
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            }
+        } finally {
+            parser.close();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.iotedge.util;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Canonical SHA-256 hash of JSON content. Key order and whitespace don't change the hash: every value is
+ * hashed on its own and objects combine the hashes of their entries sorted by key.
+ */
+public final class JsonHash {
+
+    private static final String ALGORITHM = "SHA-256";
+
+    public static String hash(JsonNode node) {
+        return toHex(digest(node));
+    }
+
+    static byte[] digest(JsonNode node) {
+        if (node.isObject()) {
+            List<Map.Entry<String, byte[]>> entries = new ArrayList<>();
+            Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                entries.add(new AbstractMap.SimpleEntry<>(field.getKey(), digest(field.getValue())));
+            }
+            return digestObject(entries);
+        } else if (node.isArray()) {
+            List<byte[]> elements = new ArrayList<>();
+            for (JsonNode element : node) {
+                elements.add(digest(element));
+            }
+            return digestArray(elements);
+        } else if (node.isTextual()) {
+            return digestString(node.textValue());
+        } else if (node.isIntegralNumber()) {
+            return digestNumber(node.bigIntegerValue().toString());
+        } else if (node.isNumber()) {
+            return digestNumber(Double.toString(node.doubleValue()));
+        } else if (node.isBoolean()) {
+            return digestLiteral(node.booleanValue() ? "t" : "f");
+        } else {
+            return digestLiteral("z");
+        }
+    }
+
+    /**
+     * Hashes the value the parser is on, the same way as {@link #hash(JsonNode)}, without reading it into a tree.
+     * The parser is left on the last token of the value.
+     */
+    public static String hash(JsonParser parser) throws IOException {
+        return toHex(digest(parser, null));
+    }
+
+    /**
+     * Digests the value the parser is on. If the value is an object and {@code keys} is given, its field names are
+     * added to {@code keys}.
+     */
+    static byte[] digest(JsonParser parser, Set<String> keys) throws IOException {
+        JsonToken token = parser.getCurrentToken();
+        if (token == null) {
+            throw new IOException("Unexpected end of JSON content");
+        }
+        switch (token) {
+            case START_OBJECT:
+                List<Map.Entry<String, byte[]>> entries = new ArrayList<>();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String name = parser.getCurrentName();
+                    if (keys != null) {
+                        keys.add(name);
+                    }
+                    parser.nextToken();
+                    entries.add(new AbstractMap.SimpleEntry<>(name, digest(parser, null)));
+                }
+                return digestObject(entries);
+            case START_ARRAY:
+                List<byte[]> elements = new ArrayList<>();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    elements.add(digest(parser, null));
+                }
+                return digestArray(elements);
+            case VALUE_STRING:
+                return digestString(parser.getText());
+            case VALUE_NUMBER_INT:
+                return digestNumber(parser.getBigIntegerValue().toString());
+            case VALUE_NUMBER_FLOAT:
+                return digestNumber(Double.toString(parser.getDoubleValue()));
+            case VALUE_TRUE:
+                return digestLiteral("t");
+            case VALUE_FALSE:
+                return digestLiteral("f");
+            case VALUE_NULL:
+                return digestLiteral("z");
+            default:
+                throw new IOException("Unexpected JSON token " + token);
+        }
+    }
+
+    static byte[] digestObject(List<Map.Entry<String, byte[]>> entries) {
+        Collections.sort(entries, new Comparator<Map.Entry<String, byte[]>>() {
+            @Override
+            public int compare(Map.Entry<String, byte[]> a, Map.Entry<String, byte[]> b) {
+                return a.getKey().compareTo(b.getKey());
+            }
+        });
+        MessageDigest digest = newDigest();
+        digest.update((byte) '{');
+        for (Map.Entry<String, byte[]> entry : entries) {
+            digest.update(digestString(entry.getKey()));
+            digest.update(entry.getValue());
+        }
+        digest.update((byte) '}');
+        return digest.digest();
+    }
+
+    static byte[] digestArray(List<byte[]> elements) {
+        MessageDigest digest = newDigest();
+        digest.update((byte) '[');
+        for (byte[] element : elements) {
+            digest.update(element);
+        }
+        digest.update((byte) ']');
+        return digest.digest();
+    }
+
+    static byte[] digestString(String value) {
+        return digestLiteral("s" + value);
+    }
+
+    static byte[] digestNumber(String value) {
+        return digestLiteral("n" + value);
+    }
+
+    static byte[] digestLiteral(String value) {
+        return newDigest().digest(value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private JsonHash() {
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.iotedge.util;
+
+import hudson.console.LineTransformationOutputStream;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Writes whole lines to a shared log with a prefix, so that output of tasks running concurrently stays readable.
+ */
+public class PrefixedOutputStream extends LineTransformationOutputStream {
+    private final PrintStream logger;
+    private final byte[] prefix;
+
+    public PrefixedOutputStream(PrintStream logger, String prefix) {
+        this.logger = logger;
+        this.prefix = ("[" + prefix + "] ").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    protected void eol(byte[] b, int len) throws IOException {
+        synchronized (logger) {
+            logger.write(prefix, 0, prefix.length);
+            logger.write(b, 0, len);
+            logger.flush();
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.iotedge.util;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.jenkins.iotedge.model.RestException;
+import okhttp3.Credentials;
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal client for the Docker registry HTTP API v2, enough to read the digests of a pushed tag. Handles both
+ * basic authentication and the bearer token flow used by Azure Container Registry and Docker Hub.
+ */
+public class RegistryClient {
+
+    public static final String MANIFEST_V2 = "application/vnd.docker.distribution.manifest.v2+json";
+    public static final String OCI_MANIFEST = "application/vnd.oci.image.manifest.v1+json";
+
+    private static final String DOCKER_HUB = "docker.io";
+    private static final String DOCKER_HUB_REGISTRY = "registry-1.docker.io";
+    private static final Pattern CHALLENGE_PARAM = Pattern.compile("(\\w+)=\"([^\"]*)\"");
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final String registry;
+    private final String basicAuth;
+    private final ConcurrentMap<String, String> authorizations = new ConcurrentHashMap<>();
+
+    public RegistryClient(String registry, String username, String password) {
+        this.registry = normalizeRegistry(registry);
+        this.basicAuth = username == null || username.isEmpty() ? null : Credentials.basic(username, password);
+    }
+
+    /**
+     * A parsed image name: registry host, repository and tag.
+     */
+    public static final class ImageReference {
+        private final String registry;
+        private final String repository;
+        private final String tag;
+
+        ImageReference(String registry, String repository, String tag) {
+            this.registry = registry;
+            this.repository = repository;
+            this.tag = tag;
+        }
+
+        public String getRegistry() {
+            return registry;
+        }
+
+        public String getRepository() {
+            return repository;
+        }
+
+        public String getTag() {
+            return tag;
+        }
+
+        @Override
+        public String toString() {
+            return registry + "/" + repository + ":" + tag;
+        }
+    }
+
+    /**
+     * Parses an image name the way docker does: the first path component is the registry if it looks like a host.
+     */
+    public static ImageReference parseImage(String image) {
+        String name = image;
+        String tag = "latest";
+        int slash = name.lastIndexOf('/');
+        int colon = name.lastIndexOf(':');
+        if (colon > slash) {
+            tag = name.substring(colon + 1);
+            name = name.substring(0, colon);
+        }
+        String registry = DOCKER_HUB;
+        int firstSlash = name.indexOf('/');
+        if (firstSlash > 0) {
+            String first = name.substring(0, firstSlash);
+            if (first.contains(".") || first.contains(":") || "localhost".equals(first)) {
+                registry = first;
+                name = name.substring(firstSlash + 1);
+            }
+        }
+        if (DOCKER_HUB.equals(registry) && !name.contains("/")) {
+            name = "library/" + name;
+        }
+        return new ImageReference(registry, name, tag);
+    }
+
+    /**
+     * Returns the manifest digest of a tag with a HEAD request, or null if the tag doesn't exist.
+     */
+    public String getManifestDigest(String repository, String tag) throws IOException {
+        try {
+            return execute(manifestRequest(repository, tag).head(), pullScope(repository),
+                    new RestClient.ResponseHandler<String>() {
+                        @Override
+                        public String handle(Response response, InputStream body) {
+                            return response.header("Docker-Content-Digest");
+                        }
+                    });
+        } catch (RestException e) {
+            if (e.isNotFound()) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the digest of the image config a tag points to, which is the id of the image in docker, or null if
+     * the tag doesn't exist or points to a manifest list.
+     */
+    public String getConfigDigest(String repository, String tag) throws IOException {
+        try {
+            JsonNode manifest = execute(manifestRequest(repository, tag).get(), pullScope(repository),
+                    new RestClient.ResponseHandler<JsonNode>() {
+                        @Override
+                        public JsonNode handle(Response response, InputStream body) throws IOException {
+                            return MAPPER.readTree(body);
+                        }
+                    });
+            JsonNode digest = manifest.path("config").path("digest");
+            return digest.isTextual() ? digest.textValue() : null;
+        } catch (RestException e) {
+            if (e.isNotFound()) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    private Request.Builder manifestRequest(String repository, String tag) {
+        return RestClient.newRequest(String.format("https://%s/v2/%s/manifests/%s", registry, repository, tag))
+                .header("Accept", MANIFEST_V2 + ", " + OCI_MANIFEST);
+    }
+
+    private static String pullScope(String repository) {
+        return "repository:" + repository + ":pull";
+    }
+
+    /**
+     * Executes a request with the authorization cached for its scope. When the registry challenges the request,
+     * authenticates as it asks and tries once more.
+     */
+    private <T> T execute(Request.Builder request, String scope, RestClient.ResponseHandler<T> handler) throws IOException {
+        String authorization = authorizations.get(scope);
+        if (authorization != null) {
+            request.header("Authorization", authorization);
+        }
+        try {
+            return RestClient.execute(request.build(), handler);
+        } catch (RestException e) {
+            if (e.getStatusCode() != 401 || e.getAuthenticate() == null) {
+                throw e;
+            }
+            authorization = authenticate(e.getAuthenticate(), scope);
+            if (authorization == null) {
+                throw e;
+            }
+            authorizations.put(scope, authorization);
+            return RestClient.execute(request.header("Authorization", authorization).build(), handler);
+        }
+    }
+
+    private String authenticate(String challenge, String scope) throws IOException {
+        if (challenge.regionMatches(true, 0, "Basic", 0, "Basic".length())) {
+            return basicAuth;
+        }
+        if (!challenge.regionMatches(true, 0, "Bearer", 0, "Bearer".length())) {
+            return null;
+        }
+        Map<String, String> params = new HashMap<>();
+        Matcher matcher = CHALLENGE_PARAM.matcher(challenge);
+        while (matcher.find()) {
+            params.put(matcher.group(1), matcher.group(2));
+        }
+        HttpUrl realm = params.containsKey("realm") ? HttpUrl.parse(params.get("realm")) : null;
+        if (realm == null) {
+            return null;
+        }
+        HttpUrl.Builder url = realm.newBuilder();
+        if (params.containsKey("service")) {
+            url.addQueryParameter("service", params.get("service"));
+        }
+        url.addQueryParameter("scope", params.containsKey("scope") ? params.get("scope") : scope);
+        Request.Builder tokenRequest = RestClient.newRequest(url.build().toString()).get();
+        if (basicAuth != null) {
+            tokenRequest.header("Authorization", basicAuth);
+        }
+        JsonNode token = RestClient.execute(tokenRequest.build(), new RestClient.ResponseHandler<JsonNode>() {
+            @Override
+            public JsonNode handle(Response response, InputStream body) throws IOException {
+                return MAPPER.readTree(body);
+            }
+        });
+        String value = token.has("token") ? token.path("token").asText() : token.path("access_token").asText();
+        return value.isEmpty() ? null : "Bearer " + value;
+    }
+
+    /**
+     * Whether a registry url, such as the login server of the push, and the registry of an image name are the same
+     * registry. Credentials of one registry are never sent to another.
+     */
+    public static boolean isSameRegistry(String url, String registry) {
+        String host = url == null ? "" : url.replaceFirst("^https?://", "");
+        int slash = host.indexOf('/');
+        if (slash >= 0) {
+            host = host.substring(0, slash);
+        }
+        return normalizeRegistry(host).equalsIgnoreCase(normalizeRegistry(registry));
+    }
+
+    private static String normalizeRegistry(String registry) {
+        String host = registry.replaceFirst("^https?://", "");
+        while (host.endsWith("/")) {
+            host = host.substring(0, host.length() - 1);
+        }
+        if (host.isEmpty() || DOCKER_HUB.equals(host) || "index.docker.io".equals(host)) {
+            return DOCKER_HUB_REGISTRY;
+        }
+        return host;
+    }
+}
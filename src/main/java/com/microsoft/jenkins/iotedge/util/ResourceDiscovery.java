@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.iotedge.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.microsoft.azure.util.AzureCredentials;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Discovers IoT Hubs and container registries by asking ARM for those resource types only, instead of listing
+ * every generic resource and filtering on the client.
+ */
+public final class ResourceDiscovery {
+
+    public static final String TYPE_IOTHUB = "Microsoft.Devices/IotHubs";
+    public static final String TYPE_ACR = "Microsoft.ContainerRegistry/registries";
+
+    /**
+     * Whether a dropdown refresh should discover hubs and registries of all resource groups of the subscription
+     * in one query, instead of querying the selected resource group only.
+     */
+    public static final boolean SUBSCRIPTION_WIDE =
+            Boolean.getBoolean(ResourceDiscovery.class.getName() + ".subscriptionWide");
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    /**
+     * Resource names found by a query, grouped by resource type and then by lower case resource group name.
+     */
+    public static final class Result {
+        private final Map<String, Map<String, List<String>>> names = new HashMap<>();
+
+        void add(String type, String resourceGroup, String name) {
+            Map<String, List<String>> byGroup = names.get(type.toLowerCase());
+            if (byGroup == null) {
+                byGroup = new HashMap<>();
+                names.put(type.toLowerCase(), byGroup);
+            }
+            List<String> list = byGroup.get(resourceGroup.toLowerCase());
+            if (list == null) {
+                list = new ArrayList<>();
+                byGroup.put(resourceGroup.toLowerCase(), list);
+            }
+            list.add(name);
+        }
+
+        public List<String> get(String type, String resourceGroup) {
+            Map<String, List<String>> byGroup = names.get(type.toLowerCase());
+            if (byGroup == null || !byGroup.containsKey(resourceGroup.toLowerCase())) {
+                return new ArrayList<>();
+            }
+            return byGroup.get(resourceGroup.toLowerCase());
+        }
+
+        public Map<String, List<String>> getByResourceGroup(String type) {
+            Map<String, List<String>> byGroup = names.get(type.toLowerCase());
+            return byGroup == null ? new HashMap<String, List<String>>() : byGroup;
+        }
+    }
+
+    public static List<String> listIothubs(AzureCredentials.ServicePrincipal servicePrincipal, String resourceGroup)
+            throws IOException {
+        String url = String.format(Constants.REST_LIST_RESOURCE_GROUP_RESOURCES_URL,
+                Util.resourceManagerEndpoint(servicePrincipal), servicePrincipal.getSubscriptionId(),
+                Util.encodeURIComponent(resourceGroup), Util.encodeURIComponent(typeFilter(TYPE_IOTHUB)));
+        return query(servicePrincipal, url).get(TYPE_IOTHUB, resourceGroup);
+    }
+
+    /**
+     * Finds the IoT Hubs and container registries of every resource group of the subscription in one query.
+     */
+    public static Result discoverSubscription(AzureCredentials.ServicePrincipal servicePrincipal) throws IOException {
+        String url = String.format(Constants.REST_LIST_SUBSCRIPTION_RESOURCES_URL,
+                Util.resourceManagerEndpoint(servicePrincipal), servicePrincipal.getSubscriptionId(),
+                Util.encodeURIComponent(typeFilter(TYPE_IOTHUB, TYPE_ACR)));
+        return query(servicePrincipal, url);
+    }
+
+    private static String typeFilter(String... types) {
+        StringBuilder filter = new StringBuilder();
+        for (String type : types) {
+            if (filter.length() > 0) {
+                filter.append(" or ");
+            }
+            filter.append("resourceType eq '").append(type).append("'");
+        }
+        return filter.toString();
+    }
+
+    private static Result query(AzureCredentials.ServicePrincipal servicePrincipal, String url) throws IOException {
+        final Result result = new Result();
+        String nextLink = url;
+        while (nextLink != null) {
+            nextLink = RestClient.execute(RestClient.newRequest(nextLink)
+                            .header("Authorization", "Bearer " + TokenCache.getAccessToken(servicePrincipal))
+                            .get()
+                            .build(),
+                    new RestClient.ResponseHandler<String>() {
+                        @Override
+                        public String handle(Response response, InputStream body) throws IOException {
+                            return readPage(body, result);
+                        }
+                    });
+        }
+        return result;
+    }
+
+    /**
+     * Reads one page of a resource list and returns its nextLink, if any.
+     */
+    private static String readPage(InputStream is, Result result) throws IOException {
+        String nextLink = null;
+        JsonParser parser = JSON_FACTORY.createParser(is);
+        try {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Unexpected resource list response, object expected");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if ("value".equals(field) && token == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        readResource(parser, result);
+                    }
+                } else if ("nextLink".equals(field) && token == JsonToken.VALUE_STRING) {
+                    nextLink = parser.getText();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        } finally {
+            parser.close();
+        }
+        return nextLink;
+    }
+
+    private static void readResource(JsonParser parser, Result result) throws IOException {
+        String id = null;
+        String name = null;
+        String type = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if ("id".equals(field)) {
+                id = parser.getText();
+            } else if ("name".equals(field)) {
+                name = parser.getText();
+            } else if ("type".equals(field)) {
+                type = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        String resourceGroup = resourceGroupOf(id);
+        if (name != null && type != null && resourceGroup != null) {
+            result.add(type, resourceGroup, name);
+        }
+    }
+
+    private static String resourceGroupOf(String id) {
+        if (id == null) {
+            return null;
+        }
+        String[] segments = id.split("/");
+        for (int i = 0; i < segments.length - 1; i++) {
+            if ("resourceGroups".equalsIgnoreCase(segments[i])) {
+                return segments[i + 1];
+            }
+        }
+        return null;
+    }
+
+    private ResourceDiscovery() {
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.iotedge.util;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches the resource names shown in the config page dropdowns. Fresh entries are served from memory, stale
+ * ones are served as well while a background refresh runs, and only missing or expired entries are loaded on
+ * the request thread.
+ */
+public final class ResourceListCache {
+
+    private static final Logger LOGGER = Logger.getLogger(ResourceListCache.class.getName());
+
+    public static final String KIND_RESOURCE_GROUP = "resourceGroup";
+    public static final String KIND_ACR = "acr";
+    public static final String KIND_IOTHUB = "iothub";
+
+    private static final long FRESH_MILLIS = TimeUnit.MINUTES.toMillis(
+            Long.getLong(ResourceListCache.class.getName() + ".freshMinutes", 5));
+    private static final long EXPIRE_MILLIS = TimeUnit.MINUTES.toMillis(
+            Long.getLong(ResourceListCache.class.getName() + ".expireMinutes", 60));
+    private static final int MAX_ENTRIES = 1000;
+    private static final int REFRESH_THREADS = 2;
+    private static final int REFRESH_QUEUE_SIZE = 100;
+    private static final String SEPARATOR = "|";
+
+    private static final Cache<String, Entry> CACHE = CacheBuilder.newBuilder()
+            .maximumSize(MAX_ENTRIES)
+            .expireAfterWrite(EXPIRE_MILLIS, TimeUnit.MILLISECONDS)
+            .build();
+
+    private static final ThreadPoolExecutor REFRESH_EXECUTOR = new ThreadPoolExecutor(
+            REFRESH_THREADS, REFRESH_THREADS, 60, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(REFRESH_QUEUE_SIZE),
+            new NamingThreadFactory(new DaemonThreadFactory(), "Azure IoT Edge resource list refresh"));
+
+    static {
+        REFRESH_EXECUTOR.allowCoreThreadTimeOut(true);
+    }
+
+    private static final class Entry {
+        private final List<String> names;
+        private final long loadedAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean(false);
+
+        Entry(List<String> names) {
+            this.names = Collections.unmodifiableList(new ArrayList<>(names));
+            this.loadedAt = System.currentTimeMillis();
+        }
+
+        boolean isFresh() {
+            return System.currentTimeMillis() - loadedAt < FRESH_MILLIS;
+        }
+    }
+
+    public static String key(String kind, String credentialId, String subscriptionId, String resourceGroup) {
+        // resource group names are case insensitive
+        return credentialId + SEPARATOR + subscriptionId + SEPARATOR
+                + (resourceGroup == null ? null : resourceGroup.toLowerCase()) + SEPARATOR + kind;
+    }
+
+    /**
+     * Returns the cached names for the key, loading them on the calling thread only if nothing is cached.
+     */
+    public static List<String> get(final String key, final Callable<List<String>> loader) throws Exception {
+        final Entry entry = CACHE.getIfPresent(key);
+        if (entry == null) {
+            Entry loaded = new Entry(loader.call());
+            CACHE.put(key, loaded);
+            return loaded.names;
+        }
+        if (!entry.isFresh() && entry.refreshing.compareAndSet(false, true)) {
+            try {
+                REFRESH_EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            CACHE.put(key, new Entry(loader.call()));
+                        } catch (Exception e) {
+                            LOGGER.log(Level.WARNING, "Failed to refresh Azure resource list " + key, e);
+                        } finally {
+                            entry.refreshing.set(false);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                entry.refreshing.set(false);
+            }
+        }
+        return entry.names;
+    }
+
+    /**
+     * Replaces the cached names for the key, e.g. with results discovered by another query.
+     */
+    public static void put(String key, List<String> names) {
+        CACHE.put(key, new Entry(names));
+    }
+
+    /**
+     * Drops every entry loaded with the credential.
+     */
+    public static void invalidate(String credentialId) {
+        String prefix = credentialId + SEPARATOR;
+        for (String key : new ArrayList<>(CACHE.asMap().keySet())) {
+            if (key.startsWith(prefix)) {
+                CACHE.invalidate(key);
+            }
+        }
+    }
+
+    private ResourceListCache() {
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.iotedge.util;
+
+import com.microsoft.jenkins.iotedge.model.RestException;
+import okhttp3.ConnectionPool;
+import okhttp3.MediaType;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Shared HTTP transport for the REST calls made by the plugin. Connections are pooled and kept alive across
+ * calls, gzip responses are decoded transparently, every call has connect/read timeouts and the number of
+ * concurrent calls per host is capped so a hanging endpoint can't take all request threads.
+ */
+public final class RestClient {
+
+    public static final MediaType JSON = MediaType.parse("application/json; charset=utf-8");
+    public static final MediaType FORM = MediaType.parse("application/x-www-form-urlencoded");
+
+    private static final int CONNECT_TIMEOUT_SECONDS =
+            Integer.getInteger(RestClient.class.getName() + ".connectTimeoutSeconds", 10);
+    private static final int READ_TIMEOUT_SECONDS =
+            Integer.getInteger(RestClient.class.getName() + ".readTimeoutSeconds", 60);
+    private static final int MAX_REQUESTS_PER_HOST =
+            Integer.getInteger(RestClient.class.getName() + ".maxRequestsPerHost", 8);
+    private static final int MAX_IDLE_CONNECTIONS = 10;
+    private static final int KEEP_ALIVE_MINUTES = 5;
+    private static final int MAX_ERROR_BODY_BYTES = 4096;
+
+    private static final OkHttpClient CLIENT = new OkHttpClient.Builder()
+            .connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES))
+            .connectTimeout(CONNECT_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            .readTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            .writeTimeout(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+            .build();
+
+    private static final ConcurrentMap<String, Semaphore> HOST_PERMITS = new ConcurrentHashMap<>();
+
+    /**
+     * Consumes a successful response. The body stream is closed by the client once the handler returns.
+     */
+    public interface ResponseHandler<T> {
+        T handle(Response response, InputStream body) throws IOException;
+    }
+
+    public static Request.Builder newRequest(String url) {
+        return new Request.Builder().url(url)
+                .header("User-Agent", Constants.PLUGIN_NAME);
+    }
+
+    public static RequestBody jsonBody(String json) {
+        return RequestBody.create(JSON, json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static RequestBody formBody(String form) {
+        return RequestBody.create(FORM, form.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Executes the request and passes the response to the handler.
+     *
+     * @throws RestException if the server answered with a non-success status code
+     * @throws IOException   if the call failed or timed out
+     */
+    public static <T> T execute(Request request, ResponseHandler<T> handler) throws IOException {
+        Semaphore permits = permitsFor(request.url().host());
+        try {
+            if (!permits.tryAcquire(CONNECT_TIMEOUT_SECONDS + READ_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                throw new InterruptedIOException("Timed out waiting for a connection to " + request.url().host());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for a connection to " + request.url().host());
+        }
+        try {
+            Response response = CLIENT.newCall(request).execute();
+            ResponseBody body = response.body();
+            try {
+                if (!response.isSuccessful()) {
+                    throw new RestException(response.code(),
+                            String.format("%s %s failed with status %d: %s", request.method(), request.url().encodedPath(),
+                                    response.code(), readErrorBody(body)),
+                            parseRetryAfter(response.header("Retry-After")),
+                            response.header("WWW-Authenticate"));
+                }
+                return handler.handle(response, body.byteStream());
+            } finally {
+                body.close();
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Executes the request and discards the response body.
+     */
+    public static void execute(Request request) throws IOException {
+        execute(request, new ResponseHandler<Void>() {
+            @Override
+            public Void handle(Response response, InputStream body) {
+                return null;
+            }
+        });
+    }
+
+    private static Semaphore permitsFor(String host) {
+        Semaphore permits = HOST_PERMITS.get(host);
+        if (permits == null) {
+            Semaphore created = new Semaphore(MAX_REQUESTS_PER_HOST, true);
+            permits = HOST_PERMITS.putIfAbsent(host, created);
+            if (permits == null) {
+                permits = created;
+            }
+        }
+        return permits;
+    }
+
+    private static String readErrorBody(ResponseBody body) {
+        try {
+            InputStream is = body.byteStream();
+            byte[] buffer = new byte[MAX_ERROR_BODY_BYTES];
+            int total = 0;
+            int read;
+            while (total < buffer.length && (read = is.read(buffer, total, buffer.length - total)) != -1) {
+                total += read;
+            }
+            return new String(buffer, 0, total, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return "";
+        }
+    }
+
+    private static long parseRetryAfter(String value) {
+        if (value == null) {
+            return RestException.NO_RETRY_AFTER;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return RestException.NO_RETRY_AFTER;
+        }
+    }
+
+    private RestClient() {
+    }
+}
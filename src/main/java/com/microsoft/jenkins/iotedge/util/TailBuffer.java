@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.iotedge.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Ring buffer keeping only the last bytes written to it.
+ */
+public class TailBuffer {
+
+    private final byte[] buffer;
+    private int start;
+    private int size;
+
+    public TailBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.buffer = new byte[capacity];
+    }
+
+    public synchronized void write(byte[] b, int off, int len) {
+        if (len >= buffer.length) {
+            // Only the end of the chunk fits
+            System.arraycopy(b, off + len - buffer.length, buffer, 0, buffer.length);
+            start = 0;
+            size = buffer.length;
+            return;
+        }
+        int end = (start + size) % buffer.length;
+        int first = Math.min(len, buffer.length - end);
+        System.arraycopy(b, off, buffer, end, first);
+        System.arraycopy(b, off + first, buffer, 0, len - first);
+        int overflow = size + len - buffer.length;
+        if (overflow > 0) {
+            start = (start + overflow) % buffer.length;
+            size = buffer.length;
+        } else {
+            size += len;
+        }
+    }
+
+    public synchronized byte[] toByteArray() {
+        byte[] result = new byte[size];
+        int first = Math.min(size, buffer.length - start);
+        System.arraycopy(buffer, start, result, 0, first);
+        System.arraycopy(buffer, 0, result, first, size - first);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return new String(toByteArray(), StandardCharsets.UTF_8);
+    }
+}
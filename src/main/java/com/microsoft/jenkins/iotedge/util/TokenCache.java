@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) Microsoft Corporation. All rights reserved.
+ * Licensed under the MIT License. See License.txt in the project root for
+ * license information.
+ */
+
+package com.microsoft.jenkins.iotedge.util;
+
+import com.microsoft.azure.util.AzureCredentials;
+import okhttp3.Response;
+import org.apache.commons.io.IOUtils;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches AAD access tokens per tenant/client and IoT Hub iothubowner keys per subscription/resource group/hub,
+ * so that the REST calls made while filling dropdowns don't fetch them again on every refresh.
+ */
+public final class TokenCache {
+
+    private static final String IOTHUB_OWNER_KEY_NAME = "iothubowner";
+
+    private static final ConcurrentMap<String, Entry> ACCESS_TOKENS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Entry> IOTHUB_KEYS = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, Object> LOCKS = new ConcurrentHashMap<>();
+
+    private static final RestClient.ResponseHandler<JSONObject> JSON_OBJECT_HANDLER = new RestClient.ResponseHandler<JSONObject>() {
+        @Override
+        public JSONObject handle(Response response, InputStream body) throws IOException {
+            return new JSONObject(IOUtils.toString(body, Constants.CHARSET_UTF_8));
+        }
+    };
+
+    private static final class Entry {
+        private final String value;
+        private final long expiresAt;
+
+        Entry(String value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isFresh() {
+            return System.currentTimeMillis() < expiresAt - TimeUnit.MINUTES.toMillis(Constants.TOKEN_REFRESH_MARGIN_MINUTES);
+        }
+    }
+
+    /**
+     * Returns a management access token for the service principal.
+     */
+    public static String getAccessToken(AzureCredentials.ServicePrincipal servicePrincipal) throws IOException {
+        String key = servicePrincipal.getTenant() + "/" + servicePrincipal.getClientId();
+        Entry entry = ACCESS_TOKENS.get(key);
+        if (entry != null && entry.isFresh()) {
+            return entry.value;
+        }
+        synchronized (lockFor(key)) {
+            entry = ACCESS_TOKENS.get(key);
+            if (entry != null && entry.isFresh()) {
+                return entry.value;
+            }
+            JSONObject token = RestClient.execute(RestClient.newRequest(String.format(Constants.REST_GET_TOKEN_URL, Util.authenticationEndpoint(servicePrincipal), servicePrincipal.getTenant()))
+                            .post(RestClient.formBody(String.format(Constants.REST_GET_TOKEN_BODY, Util.encodeURIComponent(Util.serviceManagementUrl(servicePrincipal)), servicePrincipal.getClientId(), Util.encodeURIComponent(servicePrincipal.getClientSecret()))))
+                            .build(),
+                    JSON_OBJECT_HANDLER);
+            long expiresIn = token.optLong("expires_in", TimeUnit.HOURS.toSeconds(1));
+            entry = new Entry(token.getString("access_token"), System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(expiresIn));
+            ACCESS_TOKENS.put(key, entry);
+            return entry.value;
+        }
+    }
+
+    /**
+     * Returns the primary iothubowner key of the hub, or null if the hub has no such policy.
+     */
+    public static String getIothubOwnerKey(AzureCredentials.ServicePrincipal servicePrincipal,
+                                           String resourceGroup, String iothubName) throws IOException {
+        String key = hubKey(servicePrincipal.getSubscriptionId(), resourceGroup, iothubName);
+        Entry entry = IOTHUB_KEYS.get(key);
+        if (entry != null && entry.isFresh()) {
+            return entry.value;
+        }
+        synchronized (lockFor(key)) {
+            entry = IOTHUB_KEYS.get(key);
+            if (entry != null && entry.isFresh()) {
+                return entry.value;
+            }
+            String accessToken = getAccessToken(servicePrincipal);
+            JSONArray keys = RestClient.execute(RestClient.newRequest(String.format(Constants.REST_GET_IOT_KEY_URL, Util.resourceManagerEndpoint(servicePrincipal), servicePrincipal.getSubscriptionId(), Util.encodeURIComponent(resourceGroup), Util.encodeURIComponent(iothubName)))
+                            .header("Authorization", "Bearer " + accessToken)
+                            .post(RestClient.jsonBody(""))
+                            .build(),
+                    JSON_OBJECT_HANDLER).getJSONArray("value");
+            for (int i = 0; i < keys.length(); i++) {
+                JSONObject obj = keys.getJSONObject(i);
+                if (obj.getString("keyName").equals(IOTHUB_OWNER_KEY_NAME)) {
+                    entry = new Entry(obj.getString("primaryKey"),
+                            System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(Constants.IOTHUB_KEY_CACHE_TTL_MINUTES));
+                    IOTHUB_KEYS.put(key, entry);
+                    return entry.value;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Forgets the cached key of a hub, e.g. after IoT Hub rejected a token signed with it.
+     */
+    public static void invalidateIothubOwnerKey(String subscriptionId, String resourceGroup, String iothubName) {
+        IOTHUB_KEYS.remove(hubKey(subscriptionId, resourceGroup, iothubName));
+    }
+
+    public static String getIothubOwnerKeyName() {
+        return IOTHUB_OWNER_KEY_NAME;
+    }
+
+    private static String hubKey(String subscriptionId, String resourceGroup, String iothubName) {
+        return (subscriptionId + "/" + resourceGroup + "/" + iothubName).toLowerCase();
+    }
+
+    private static Object lockFor(String key) {
+        Object lock = new Object();
+        Object existing = LOCKS.putIfAbsent(key, lock);
+        return existing != null ? existing : lock;
+    }
+
+    private TokenCache() {
+    }
+}
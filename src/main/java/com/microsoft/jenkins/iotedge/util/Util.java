@@ -1,17 +1,21 @@
 package com.microsoft.jenkins.iotedge.util;
 
 import com.microsoft.applicationinsights.core.dependencies.apachecommons.codec.binary.Base64;
+import com.microsoft.azure.util.AzureCredentials;
+import com.microsoft.jenkins.iotedge.model.AzureCloudException;
 import com.microsoft.jenkins.iotedge.util.Constants;
+import hudson.FilePath;
+import org.apache.commons.lang.StringUtils;
 
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Pattern;
 
 /**
@@ -35,6 +39,42 @@ public class Util {
         return priorityPattern.matcher(priority).find();
     }
 
+    /**
+     * Splits a comma separated list, dropping blank entries.
+     */
+    public static List<String> splitList(String value) {
+        List<String> entries = new ArrayList<>();
+        if (value != null) {
+            for (String entry : value.split(",")) {
+                if (!entry.trim().isEmpty()) {
+                    entries.add(entry.trim());
+                }
+            }
+        }
+        return entries;
+    }
+
+    public static boolean isGlob(String pattern) {
+        return pattern.contains("*") || pattern.contains("?");
+    }
+
+    /**
+     * Matches a name against a pattern where * stands for any characters and ? for one, ignoring case.
+     */
+    public static boolean matchesGlob(String pattern, String name) {
+        StringBuilder regex = new StringBuilder();
+        for (String part : pattern.split("(?=[*?])|(?<=[*?])")) {
+            if ("*".equals(part)) {
+                regex.append(".*");
+            } else if ("?".equals(part)) {
+                regex.append('.');
+            } else {
+                regex.append(Pattern.quote(part));
+            }
+        }
+        return Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE).matcher(name).matches();
+    }
+
     public static String getSharedAccessToken(String resourceUri, String signingKey, String policyName, int expiresInMins) {
         try {
             resourceUri = URLEncoder.encode(resourceUri, Constants.CHARSET_UTF_8);
@@ -87,53 +127,48 @@ public class Util {
         }
     }
 
-    public static String executePost(String targetURL, String urlParameters, String auth, String contentType) {
-        HttpURLConnection connection = null;
+    /**
+     * The Azure AD endpoint of the environment of the credential, e.g. the China or US Government cloud, ending
+     * with a slash.
+     */
+    public static String authenticationEndpoint(AzureCredentials.ServicePrincipal servicePrincipal) {
+        return withTrailingSlash(StringUtils.defaultIfBlank(servicePrincipal.getAuthenticationEndpoint(),
+                Constants.DEFAULT_AUTHENTICATION_ENDPOINT));
+    }
 
-        try {
-            //Create connection
-            URL url = new URL(targetURL);
-            connection = (HttpURLConnection) url.openConnection();
-            connection.setRequestMethod("POST");
+    /**
+     * The Resource Manager endpoint of the environment of the credential, ending with a slash.
+     */
+    public static String resourceManagerEndpoint(AzureCredentials.ServicePrincipal servicePrincipal) {
+        return withTrailingSlash(StringUtils.defaultIfBlank(servicePrincipal.getResourceManagerEndpoint(),
+                Constants.DEFAULT_RESOURCE_MANAGER_ENDPOINT));
+    }
 
-            if (auth != null) {
-                connection.setRequestProperty("Authorization", auth);
-            }
+    /**
+     * The resource that management tokens are issued for in the environment of the credential.
+     */
+    public static String serviceManagementUrl(AzureCredentials.ServicePrincipal servicePrincipal) {
+        return StringUtils.defaultIfBlank(servicePrincipal.getServiceManagementURL(),
+                Constants.DEFAULT_SERVICE_MANAGEMENT_URL);
+    }
 
-            if(contentType != null) {
-                connection.setRequestProperty("Content-Type", contentType);
-            }
+    private static String withTrailingSlash(String url) {
+        return url.endsWith("/") ? url : url + "/";
+    }
 
-            connection.setRequestProperty("Content-Length",
-                    Integer.toString(urlParameters.getBytes(Constants.CHARSET_UTF_8).length));
-
-            connection.setUseCaches(false);
-            connection.setDoOutput(true);
-
-            //Send request
-            DataOutputStream wr = new DataOutputStream(
-                    connection.getOutputStream());
-            wr.writeBytes(urlParameters);
-            wr.close();
-
-            //Get Response
-            InputStream is = connection.getInputStream();
-            BufferedReader rd = new BufferedReader(new InputStreamReader(is, Constants.CHARSET_UTF_8));
-            StringBuilder response = new StringBuilder(); // or StringBuffer if Java version 5+
-            String line;
-            while ((line = rd.readLine()) != null) {
-                response.append(line);
-                response.append('\r');
-            }
-            rd.close();
-            return response.toString();
-        } catch (Exception e) {
-            e.printStackTrace();
-            return null;
-        } finally {
-            if (connection != null) {
-                connection.disconnect();
+    /**
+     * Runs a callable on the node a file is on. Callables can only fail with an IOException, so an
+     * {@link AzureCloudException} they fail with is wrapped in one; it is unwrapped here.
+     */
+    public static <T> T act(FilePath file, FilePath.FileCallable<T> callable)
+            throws AzureCloudException, IOException, InterruptedException {
+        try {
+            return file.act(callable);
+        } catch (IOException e) {
+            if (e.getCause() instanceof AzureCloudException) {
+                throw (AzureCloudException) e.getCause();
             }
+            throw e;
         }
     }
 }
@@ -0,0 +1,73 @@
+package com.microsoft.jenkins.iotedge;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.jenkins.iotedge.model.AzureCloudException;
+import com.microsoft.jenkins.iotedge.util.DeploymentManifest;
+import com.microsoft.jenkins.iotedge.util.JsonHash;
+import hudson.FilePath;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+public class DeploymentManifestTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String MODULES = "{\"modulesContent\": {\"$edgeAgent\": {\"a\": 1}, \"$edgeHub\": {\"h\": [1, 2]}, \"app\": {}}}";
+
+    private static DeploymentManifest.Summary scan(String json) throws Exception {
+        return DeploymentManifest.scan(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void hashesContentAndCountsBytes() throws Exception {
+        DeploymentManifest.Summary summary = scan(MODULES);
+        Assert.assertEquals(JsonHash.hash(new ObjectMapper().readTree(MODULES)), summary.getContentHash());
+        Assert.assertEquals(MODULES.length(), summary.getSize());
+        Assert.assertEquals(3, summary.getModuleCount());
+    }
+
+    @Test
+    public void hashesNestedContent() throws Exception {
+        DeploymentManifest.Summary summary = scan("{\"id\": \"x\", \"content\": " + MODULES + "}");
+        Assert.assertEquals(JsonHash.hash(new ObjectMapper().readTree(MODULES)), summary.getContentHash());
+    }
+
+    @Test
+    public void rejectsInvalidManifests() throws Exception {
+        String[] invalid = {
+                "[]",
+                "{\"modulesContent\": {\"$edgeAgent\": {}}}",
+                "{\"content\": {\"$edgeAgent\": {}, \"$edgeHub\": {}}}",
+                "{\"modulesContent\": {\"$edgeAgent\": {}, \"$edgeHub\": {}}",
+        };
+        for (String json : invalid) {
+            try {
+                scan(json);
+                Assert.fail("Accepted " + json);
+            } catch (AzureCloudException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void scansFileWithContent() throws Exception {
+        FilePath file = new FilePath(folder.getRoot()).child("deployment.json");
+        file.write("{\"id\": \"x\", \"content\": " + MODULES + "}", "UTF-8");
+        DeploymentManifest.Summary summary = DeploymentManifest.scan(file, true);
+        Assert.assertEquals(MODULES, summary.getContent());
+        Assert.assertNull(DeploymentManifest.scan(file, false).getContent());
+        try {
+            DeploymentManifest.scan(file.sibling("missing.json"), false);
+            Assert.fail("Accepted a missing manifest");
+        } catch (AzureCloudException e) {
+            // expected
+        }
+    }
+}
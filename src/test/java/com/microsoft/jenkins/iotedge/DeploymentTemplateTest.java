@@ -0,0 +1,45 @@
+package com.microsoft.jenkins.iotedge;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import hudson.FilePath;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Collections;
+
+public class DeploymentTemplateTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void generatesManifestLikeGenconfig() throws Exception {
+        FilePath workspace = new FilePath(folder.getRoot());
+        workspace.child(".env").write("CONTAINER_REGISTRY_SERVER=\"localhost:5000\"\n", "UTF-8");
+        workspace.child("modules/App/module.json").write("{\"image\": {\"repository\": \"${CONTAINER_REGISTRY_SERVER}/app\","
+                + " \"tag\": {\"version\": \"0.0.1\", \"platforms\": {\"amd64\": \"./Dockerfile.amd64\", \"arm32v7\": \"./Dockerfile.arm32v7\"}}}}", "UTF-8");
+        workspace.child("deployment.template.json").write("{\"$schema-template\": \"1.0.0\", \"modulesContent\": {\"$edgeAgent\": {\"properties.desired\": {\"modules\": {"
+                + "\"app\": {\"settings\": {\"image\": \"${MODULES.App}\", \"createOptions\": {\"Env\": [\"LEVEL=${LOG_LEVEL}\"]}}},"
+                + "\"arm\": {\"settings\": {\"image\": \"${MODULES.App.arm32v7}\", \"createOptions\": \"{}\"}}}}}}}", "UTF-8");
+
+        DeploymentTemplate.generate(workspace, "deployment.template.json", "config/deployment.json", "amd64",
+                Collections.singletonMap("LOG_LEVEL", "debug"));
+
+        JsonNode manifest = new ObjectMapper().readTree(workspace.child("config/deployment.json").readToString());
+        JsonNode modules = manifest.path("modulesContent").path("$edgeAgent").path("properties.desired").path("modules");
+        Assert.assertFalse(manifest.has("$schema-template"));
+        Assert.assertEquals("localhost:5000/app:0.0.1-amd64", modules.path("app").path("settings").path("image").asText());
+        Assert.assertEquals("{\"Env\":[\"LEVEL=debug\"]}", modules.path("app").path("settings").path("createOptions").asText());
+        Assert.assertEquals("localhost:5000/app:0.0.1-arm32v7", modules.path("arm").path("settings").path("image").asText());
+        Assert.assertEquals("{}", modules.path("arm").path("settings").path("createOptions").asText());
+    }
+
+    @Test
+    public void reusesCompiledTemplate() throws Exception {
+        String template = "{\"a\": [\"${X}\", 1, {\"b\": \"$Y\"}]}";
+        Assert.assertSame(DeploymentTemplate.compile(template), DeploymentTemplate.compile(template));
+    }
+}
@@ -0,0 +1,31 @@
+package com.microsoft.jenkins.iotedge;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DockerPusherTest {
+
+    @Test
+    public void countsBytesSentPerLayer() {
+        DockerPusher.ImageProgress progress = new DockerPusher.ImageProgress();
+        progress.update("a", "Preparing", null, null);
+        progress.update("a", "Pushing", 100L, 1000L);
+        progress.update("b", "Pushing", 50L, 500L);
+        progress.update("a", "Pushing", 600L, 1000L);
+        Assert.assertEquals(650L, progress.getBytesSent());
+        Assert.assertEquals(1500L, progress.getBytesTotal());
+
+        progress.update("a", "Pushed", null, null);
+        Assert.assertEquals(1050L, progress.getBytesSent());
+    }
+
+    @Test
+    public void countsExistingLayers() {
+        DockerPusher.ImageProgress progress = new DockerPusher.ImageProgress();
+        progress.update("a", "Layer already exists", null, null);
+        progress.update("b", "Layer already exists", null, null);
+        progress.update(null, "latest: digest: sha256:0 size: 1", null, null);
+        Assert.assertEquals(2, progress.getExistingLayers());
+        Assert.assertEquals(0L, progress.getBytesSent());
+    }
+}
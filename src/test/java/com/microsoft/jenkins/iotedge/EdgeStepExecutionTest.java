@@ -0,0 +1,39 @@
+package com.microsoft.jenkins.iotedge;
+
+import com.microsoft.jenkins.iotedge.model.AzureCloudException;
+import hudson.util.StreamTaskListener;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class EdgeStepExecutionTest {
+
+    @Test
+    public void keepsWatchingOtherHubsWhenOneFails() throws Exception {
+        RolloutMonitor.Rollout healthy = new RolloutMonitor.Rollout("healthy", "deployment", Long.MAX_VALUE);
+        RolloutMonitor.Rollout failing = new RolloutMonitor.Rollout("failing", "deployment", Long.MAX_VALUE);
+        List<RolloutMonitor.Rollout> rollouts = new ArrayList<>(Arrays.asList(failing, healthy));
+        List<String> failures = new ArrayList<>();
+        ByteArrayOutputStream log = new ByteArrayOutputStream();
+
+        long next = EdgeStepExecution.pollDue(rollouts, failures, new StreamTaskListener(log),
+                new EdgeStepExecution.Poller() {
+                    @Override
+                    public long poll(RolloutMonitor.Rollout rollout) throws AzureCloudException {
+                        if (rollout.getHub().equals("failing")) {
+                            throw AzureCloudException.create("Deployment deployment failed on more than 10% of the devices");
+                        }
+                        return 1000;
+                    }
+                });
+
+        Assert.assertEquals(Arrays.asList(healthy), rollouts);
+        Assert.assertEquals(Arrays.asList("failing"), failures);
+        Assert.assertEquals(healthy.due, next);
+        Assert.assertTrue(log.toString("UTF-8").contains("Deployment to failing failed"));
+    }
+}
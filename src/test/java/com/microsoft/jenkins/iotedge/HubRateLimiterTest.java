@@ -0,0 +1,47 @@
+package com.microsoft.jenkins.iotedge;
+
+import com.microsoft.jenkins.iotedge.util.HubRateLimiter;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HubRateLimiterTest {
+
+    @Test
+    public void sharesLimiterPerHubAndOperation() {
+        HubRateLimiter limiter = HubRateLimiter.get("hub", HubRateLimiter.Operation.CONFIGURATION);
+        Assert.assertSame(limiter, HubRateLimiter.get("hub", HubRateLimiter.Operation.CONFIGURATION));
+        Assert.assertNotSame(limiter, HubRateLimiter.get("hub", HubRateLimiter.Operation.QUERY));
+        Assert.assertNotSame(limiter, HubRateLimiter.get("other", HubRateLimiter.Operation.CONFIGURATION));
+        Assert.assertEquals(2, HubRateLimiter.describe("hub").size());
+    }
+
+    @Test
+    public void burstsWithoutWaiting() throws Exception {
+        HubRateLimiter limiter = HubRateLimiter.get("burst", HubRateLimiter.Operation.QUERY);
+        for (int i = 0; i < 5; i++) {
+            limiter.acquire();
+        }
+        Assert.assertEquals(0, limiter.getTotalWaitMillis());
+    }
+
+    @Test
+    public void defersWithoutReserving() {
+        HubRateLimiter limiter = HubRateLimiter.get("deferred", HubRateLimiter.Operation.CONFIGURATION);
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(0, limiter.tryAcquire());
+        }
+        long wait = limiter.tryAcquire();
+        Assert.assertTrue(wait > 0 && wait <= 3000);
+        // Asking again doesn't push the next token further away
+        Assert.assertTrue(limiter.tryAcquire() <= wait);
+    }
+
+    @Test
+    public void jittersBackoff() {
+        for (int attempt = 1; attempt <= 10; attempt++) {
+            long cap = Math.min(1000L << (attempt - 1), 60000);
+            long backoff = HubRateLimiter.backoffMillis(attempt);
+            Assert.assertTrue(backoff >= cap / 2 && backoff <= cap);
+        }
+    }
+}
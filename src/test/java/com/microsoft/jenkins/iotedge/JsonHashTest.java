@@ -0,0 +1,37 @@
+package com.microsoft.jenkins.iotedge;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.microsoft.jenkins.iotedge.util.JsonHash;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JsonHashTest {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static String hash(String json) throws Exception {
+        return JsonHash.hash(MAPPER.readTree(json));
+    }
+
+    @Test
+    public void ignoresKeyOrderAndWhitespace() throws Exception {
+        Assert.assertEquals(hash("{\"a\":1,\"b\":{\"c\":[1,2],\"d\":\"x\"}}"),
+                hash("{ \"b\" : { \"d\" : \"x\", \"c\" : [ 1, 2 ] },\n  \"a\" : 1 }"));
+    }
+
+    @Test
+    public void detectsChanges() throws Exception {
+        Assert.assertNotEquals(hash("{\"a\":[1,2]}"), hash("{\"a\":[2,1]}"));
+        Assert.assertNotEquals(hash("{\"a\":\"1\"}"), hash("{\"a\":1}"));
+        Assert.assertNotEquals(hash("{\"a\":{\"b\":1}}"), hash("{\"ab\":1}"));
+    }
+
+    @Test
+    public void streamingHashMatchesTreeHash() throws Exception {
+        String json = "{\"b\":[1,2.5,-3e2,true,false,null],\"a\":{\"y\":\"\\u00e9\",\"x\":{}},\"c\":[]}";
+        JsonParser parser = MAPPER.getFactory().createParser(json);
+        parser.nextToken();
+        Assert.assertEquals(hash(json), JsonHash.hash(parser));
+    }
+}
@@ -0,0 +1,49 @@
+package com.microsoft.jenkins.iotedge;
+
+import hudson.FilePath;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class ModuleBuildPlannerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private FilePath writeModule(FilePath workspace, String name, String platforms) throws Exception {
+        FilePath moduleDir = workspace.child("modules").child(name);
+        moduleDir.child("module.json").write("{\"image\": {\"repository\": \"${CONTAINER_REGISTRY_SERVER}/" + name + "\","
+                + " \"tag\": {\"version\": \"0.0.1\", \"platforms\": " + platforms + "},"
+                + " \"buildOptions\": [\"--pull\"], \"contextPath\": \"./\"}}", "UTF-8");
+        return moduleDir;
+    }
+
+    @Test
+    public void plansReferencedModulesAfterTheirBaseImages() throws Exception {
+        FilePath workspace = new FilePath(folder.getRoot());
+        workspace.child(".env").write("CONTAINER_REGISTRY_SERVER=\"localhost:5000\"\n", "UTF-8");
+        workspace.child("deployment.template.json").write("{\"moduleContent\": {\"$edgeAgent\": {\"properties.desired\": {\"modules\": {"
+                + "\"app\": {\"settings\": {\"image\": \"${MODULES.App}\"}},"
+                + "\"base\": {\"settings\": {\"image\": \"${MODULES.Base.amd64}\"}}}}}}}", "UTF-8");
+        FilePath app = writeModule(workspace, "App", "{\"amd64\": \"./Dockerfile.amd64\", \"arm32v7\": \"./Dockerfile.arm32v7\"}");
+        app.child("Dockerfile.amd64").write("FROM ${CONTAINER_REGISTRY_SERVER}/base:0.0.1-amd64\n", "UTF-8");
+        app.child("Dockerfile.arm32v7").write("FROM arm32v7/alpine\n", "UTF-8");
+        FilePath base = writeModule(workspace, "Base", "{\"amd64\": \"./Dockerfile.amd64\"}");
+        base.child("Dockerfile.amd64").write("FROM alpine AS build\n", "UTF-8");
+        writeModule(workspace, "Unused", "{\"amd64\": \"./Dockerfile.amd64\"}");
+
+        List<ModuleBuildPlanner.ModuleBuild> plan = ModuleBuildPlanner.plan(workspace, "deployment.template.json",
+                Arrays.asList("amd64", "arm32v7"), Collections.<String, String>emptyMap());
+
+        Assert.assertEquals("[Base/amd64, App/amd64, App/arm32v7]", plan.toString());
+        Assert.assertEquals("localhost:5000/app:0.0.1-amd64", plan.get(1).getImage());
+        Assert.assertEquals(Collections.singleton(plan.get(0)), plan.get(1).getDependencies());
+        Assert.assertTrue(plan.get(2).getDependencies().isEmpty());
+        Assert.assertTrue(plan.get(0).getCommand().contains("-t \"localhost:5000/base:0.0.1-amd64\" --pull"));
+    }
+}
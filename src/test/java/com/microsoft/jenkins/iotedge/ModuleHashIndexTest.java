@@ -0,0 +1,45 @@
+package com.microsoft.jenkins.iotedge;
+
+import hudson.FilePath;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ModuleHashIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void dockerIgnoreRules() {
+        ModuleHashIndex.DockerIgnore ignore = new ModuleHashIndex.DockerIgnore();
+        ignore.add("# comment");
+        ignore.add("bin/");
+        ignore.add("**/*.pyc");
+        ignore.add("*.md");
+        ignore.add("!README.md");
+        Assert.assertTrue(ignore.isIgnored("bin/Debug/module.dll"));
+        Assert.assertTrue(ignore.isIgnored("src/main.pyc"));
+        Assert.assertTrue(ignore.isIgnored("CHANGES.md"));
+        Assert.assertFalse(ignore.isIgnored("README.md"));
+        Assert.assertFalse(ignore.isIgnored("docs/guide.md"));
+        Assert.assertFalse(ignore.isIgnored("src/main.py"));
+    }
+
+    @Test
+    public void contextHashIgnoresExcludedFiles() throws Exception {
+        FilePath context = new FilePath(folder.newFolder("module"));
+        context.child(".dockerignore").write("bin\n", "UTF-8");
+        context.child("main.py").write("print('hello')\n", "UTF-8");
+        String dockerfile = context.child("Dockerfile").getRemote();
+        context.child("Dockerfile").write("FROM python\n", "UTF-8");
+
+        String hash = context.act(new ModuleHashIndex.ContextHasher(dockerfile));
+        context.child("bin").child("output.pyc").write("built", "UTF-8");
+        Assert.assertEquals(hash, context.act(new ModuleHashIndex.ContextHasher(dockerfile)));
+
+        context.child("main.py").write("print('changed')\n", "UTF-8");
+        Assert.assertNotEquals(hash, context.act(new ModuleHashIndex.ContextHasher(dockerfile)));
+    }
+}
@@ -0,0 +1,19 @@
+package com.microsoft.jenkins.iotedge;
+
+import com.microsoft.jenkins.iotedge.util.RegistryClient;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RegistryClientTest {
+
+    @Test
+    public void matchesOnlyTheLoginRegistry() {
+        Assert.assertTrue(RegistryClient.isSameRegistry("myregistry.azurecr.io", "myregistry.azurecr.io"));
+        Assert.assertTrue(RegistryClient.isSameRegistry("https://MyRegistry.azurecr.io/", "myregistry.azurecr.io"));
+        Assert.assertTrue(RegistryClient.isSameRegistry("", "docker.io"));
+        Assert.assertTrue(RegistryClient.isSameRegistry("https://index.docker.io/v1/", "docker.io"));
+        Assert.assertFalse(RegistryClient.isSameRegistry("myregistry.azurecr.io", "mcr.microsoft.com"));
+        Assert.assertFalse(RegistryClient.isSameRegistry("myregistry.azurecr.io", "docker.io"));
+        Assert.assertFalse(RegistryClient.isSameRegistry("myregistry.azurecr.io", "myregistry.azurecr.io.evil.com"));
+    }
+}
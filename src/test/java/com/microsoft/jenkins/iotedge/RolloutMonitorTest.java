@@ -0,0 +1,48 @@
+package com.microsoft.jenkins.iotedge;
+
+import com.microsoft.jenkins.iotedge.util.IoTHubClient;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+public class RolloutMonitorTest {
+
+    private static RolloutMonitor.Verdict evaluate(long targeted, long successful, long failed) {
+        return RolloutMonitor.evaluate(new IoTHubClient.ConfigurationMetrics(null, targeted, targeted, successful, failed), 90, 10);
+    }
+
+    @Test
+    public void evaluatesThresholds() {
+        Assert.assertEquals(RolloutMonitor.Verdict.PENDING, evaluate(0, 0, 0));
+        Assert.assertEquals(RolloutMonitor.Verdict.PENDING, evaluate(10, 8, 1));
+        Assert.assertEquals(RolloutMonitor.Verdict.SUCCEEDED, evaluate(10, 9, 1));
+        Assert.assertEquals(RolloutMonitor.Verdict.FAILED, evaluate(10, 7, 2));
+        Assert.assertEquals(RolloutMonitor.Verdict.PENDING, RolloutMonitor.evaluate(null, 90, 10));
+    }
+
+    @Test
+    public void backsOffWhileUnchanged() {
+        long interval = RolloutMonitor.MIN_POLL_SECONDS;
+        for (int i = 0; i < 20; i++) {
+            long next = RolloutMonitor.nextPollSeconds(interval, false);
+            Assert.assertTrue(next >= interval);
+            Assert.assertTrue(next <= RolloutMonitor.MAX_POLL_SECONDS);
+            interval = next;
+        }
+        Assert.assertEquals(RolloutMonitor.MAX_POLL_SECONDS, interval);
+        Assert.assertEquals(RolloutMonitor.MIN_POLL_SECONDS, RolloutMonitor.nextPollSeconds(interval, true));
+    }
+
+    @Test
+    public void describesRuntimeStatus() {
+        Map<String, Map<String, Integer>> statuses = new TreeMap<>();
+        statuses.put("app", new TreeMap<String, Integer>());
+        statuses.get("app").put("running", 8);
+        statuses.get("app").put("backoff", 1);
+        statuses.put("edgeHub", new TreeMap<String, Integer>());
+        statuses.get("edgeHub").put("running", 9);
+        Assert.assertEquals("app: backoff 1, running 8; edgeHub: running 9", RolloutMonitor.describe(statuses));
+    }
+}
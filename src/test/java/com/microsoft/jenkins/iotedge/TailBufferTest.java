@@ -0,0 +1,41 @@
+package com.microsoft.jenkins.iotedge;
+
+import com.microsoft.jenkins.iotedge.util.TailBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+public class TailBufferTest {
+
+    private static void write(TailBuffer tail, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        tail.write(bytes, 0, bytes.length);
+    }
+
+    @Test
+    public void keepsEverythingUnderCapacity() {
+        TailBuffer tail = new TailBuffer(16);
+        write(tail, "hello ");
+        write(tail, "world");
+        Assert.assertEquals("hello world", tail.toString());
+    }
+
+    @Test
+    public void keepsLastBytesWhenWrapping() {
+        TailBuffer tail = new TailBuffer(8);
+        write(tail, "abcdef");
+        write(tail, "ghijk");
+        Assert.assertEquals("defghijk", tail.toString());
+        write(tail, "lm");
+        Assert.assertEquals("fghijklm", tail.toString());
+    }
+
+    @Test
+    public void keepsEndOfLargeChunk() {
+        TailBuffer tail = new TailBuffer(4);
+        write(tail, "ab");
+        write(tail, "0123456789");
+        Assert.assertEquals("6789", tail.toString());
+    }
+}
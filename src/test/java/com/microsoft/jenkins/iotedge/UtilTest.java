@@ -4,6 +4,8 @@ import com.microsoft.jenkins.iotedge.util.Util;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.Arrays;
+
 /**
  * Created by zhqqi on 7/27/2018.
  */
@@ -38,4 +40,14 @@ public class UtilTest {
         Assert.assertFalse(Util.isValidPriority("one"));
         Assert.assertFalse(Util.isValidPriority("123.4"));
     }
+
+    @Test
+    public void globTest() {
+        Assert.assertTrue(Util.matchesGlob("prod-*", "prod-westus"));
+        Assert.assertTrue(Util.matchesGlob("PROD-??", "prod-eu"));
+        Assert.assertTrue(Util.matchesGlob("hub.1", "hub.1"));
+        Assert.assertFalse(Util.matchesGlob("hub.1", "hubx1"));
+        Assert.assertFalse(Util.matchesGlob("prod-*", "staging-westus"));
+        Assert.assertEquals(Arrays.asList("a", "b"), Util.splitList(" a, ,b,"));
+    }
 }